@@ -0,0 +1,28 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+/**
+ * AccessDecision is the result of AuthenticationAPI.decideAccess(String, String, String).
+ * Unlike checkAccess, which signals a failure by throwing InvalidAccessTokenException
+ * or AccessDeniedException, decideAccess returns one of these preallocated values, so
+ * a denied check costs no more than an allowed one: no message, no stack trace and
+ * no logging.
+ * @author willpassidomo
+ */
+public enum AccessDecision {
+    /** both tokens are valid and the User has the Permission */
+    ALLOW,
+    /** both tokens are valid but the User does not have the Permission */
+    DENY,
+    /** the root token is valid but the User's token has expired */
+    TOKEN_EXPIRED,
+    /** the root token is valid but the User's token was never issued or was removed */
+    TOKEN_UNKNOWN,
+    /** the root token is unknown or expired */
+    ROOT_INVALID
+}
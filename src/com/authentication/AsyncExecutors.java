@@ -0,0 +1,41 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AsyncExecutors makes the default executor the asynchronous methods of
+ * AuthenticationAPI run on: one virtual thread per task when the runtime has
+ * them, looked up reflectively so the API still runs on older runtimes, and a
+ * cached pool of daemon threads otherwise.
+ * @author willpassidomo
+ */
+class AsyncExecutors {
+
+    private AsyncExecutors() {
+    }
+
+    /**
+     * @return a new virtual thread per task executor, or a cached daemon thread
+     * pool if virtual threads are not available
+     */
+    static ExecutorService newDefault() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "authentication-async-"+count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
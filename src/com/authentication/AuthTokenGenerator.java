@@ -6,23 +6,43 @@
 
 package com.authentication;
 
-import java.util.Calendar;
-import java.util.GregorianCalendar;
-import java.util.HashMap;
+import java.io.IOException;
+import java.time.Clock;
 import java.util.UUID;
+import java.util.function.Function;
 
 /**
  *Is a class for creating new AuthTokens, for testing validity of submitted tokens 
  * and for matching token with the User it belongs to. AuthToken’s are String 
- * representations of UUID objects, a universally Unique 128 bit value.  
- * When a new authToken is generated, it is put in a HashMap which maps the 
- * String value of the Token to an AuthTokenStamp object. AuthTokenStamp is an 
- * inner class of AuthTokenGenerator which is responsibility for logging the 
- * time a stamp is set to expire and the user it was assigned to.  
+ * representations of UUID objects, an unpredictable 128 bit value drawn from TokenRandom.  
+ * When a new authToken is generated, it is put in a TokenTable which maps the 
+ * 128 bit value of the Token to the time it is set to expire and the user it 
+ * was assigned to.  
+ * Expiry times are epoch milliseconds read from a pluggable Clock, and tokens
+ * live for a configurable time to live, 24 hours by default. Expired tokens are 
+ * evicted from the table by a hierarchical TimingWheel, which is moved forward each 
+ * time a token is minted. Optionally, a generator may mint signed tokens instead,
+ * see setSigner(TokenSigner, Function). Signed tokens describe themselves and are 
+ * verified by their MAC, so they are never put in the table; logged out signed tokens 
+ * are remembered in a RevocationList until they expire.
+ * A generator may also keep its UUID tokens in a TokenStore, see 
+ * setTokenStore(TokenStore, Function), so they survive a restart. A token missing
+ * from the table is then looked up in the store and, if it is live there, moved 
+ * into the table before the check goes on, so nothing is reloaded up front.
  * @author willpassidomo
  */
 public class AuthTokenGenerator {
-    HashMap<String, authTokenStamp> tokens = new HashMap<>();
+    public static final long DEFAULT_TIME_TO_LIVE = 24 * 60 * 60 * 1000L;
+    
+    private volatile Clock clock = Clock.systemUTC();
+    private volatile long timeToLive = DEFAULT_TIME_TO_LIVE;
+    private final TokenTable tokens = new TokenTable();
+    private volatile TokenSigner signer;
+    private volatile Function<String, User> userResolver;
+    private volatile Runnable removalListener;
+    private volatile TokenStore store;
+    private volatile Function<String, User> usersByName;
+    private final RevocationList revokedTokens = new RevocationList(60 * 1000);
     
     /**
      * Returns a new, valid authtoken mapped to the User, user
@@ -30,12 +50,24 @@ public class AuthTokenGenerator {
      * @return the newly created authToken
      */
     public String newAuthToken(User user) {
-        GregorianCalendar date = new GregorianCalendar();
-        date.add(GregorianCalendar.HOUR, 24);
-        authTokenStamp token = new authTokenStamp(user, date);
-        String authToken = UUID.randomUUID().toString();
-        tokens.put(authToken, token);
-        return authToken;
+        long now = clock.millis();
+        if (signer != null) {
+            return signer.sign(user.getUserName().trim().toLowerCase(), user.getCredentialTag(), now + timeToLive);
+        }
+        UUID authToken = TokenRandom.nextUUID();
+        tokens.put(authToken.getMostSignificantBits(), authToken.getLeastSignificantBits(), 
+                user, now + timeToLive, now);
+        TokenStore current = store;
+        if (current != null) {
+            try {
+                current.put(authToken.getMostSignificantBits(), authToken.getLeastSignificantBits(), 
+                        user.getUserName(), now + timeToLive, now);
+            } catch (IOException ex) {
+                System.out.println(ex.getMessage());
+                ex.printStackTrace();
+            }
+        }
+        return authToken.toString();
     }
     
     /**
@@ -48,18 +80,158 @@ public class AuthTokenGenerator {
      */
     
     public User checkToken(String authToken) throws InvalidAccessTokenException {
-        authTokenStamp token = tokens.get(authToken);
-        if (token != null) {
-            if (token.getDate().after(Calendar.getInstance())){
-                return token.getUser();
-            } else {
-                throw new InvalidAccessTokenException("Token is expired",token.getUser());
+        if (signer != null && TokenSigner.isSigned(authToken)) {
+            TokenSigner.Claims claims = verifySigned(authToken);
+            User user = resolveSigned(claims);
+            if (user == null) {
+                throw new InvalidAccessTokenException("Not a valid Token!");
+            } else if (claims.expiresAt <= clock.millis()) {
+                throw new InvalidAccessTokenException("Token is expired",user);
             }
+            return user;
+        }
+        User user = tokens.find(authToken, clock.millis());
+        if (user == null && restore(authToken)) {
+            user = tokens.find(authToken, clock.millis());
+        }
+        if (user != null) {
+            return user;
+        } else if ((user = tokens.find(authToken, Long.MIN_VALUE)) != null) {
+            throw new InvalidAccessTokenException("Token is expired",user);
         } else {
             throw new InvalidAccessTokenException("Not a valid Token!");
         }
     }
     
+    /**
+     * Returns the User associated with authToken if the token is valid. Unlike 
+     * checkToken(String), never throws, and finding a UUID token does not allocate
+     * @param authToken the authToken to be checked
+     * @return the User, or null if authToken is not mapped or has expired
+     */
+    User findUser(String authToken) {
+        if (signer != null && TokenSigner.isSigned(authToken)) {
+            TokenSigner.Claims claims = verifySigned(authToken);
+            User user = resolveSigned(claims);
+            return user != null && claims.expiresAt > clock.millis() ? user : null;
+        }
+        User user = tokens.find(authToken, clock.millis());
+        if (user == null && restore(authToken)) {
+            user = tokens.find(authToken, clock.millis());
+        }
+        return user;
+    }
+    
+    /**
+     * Returns true if authToken is mapped and has not expired. Never throws, and 
+     * checking a UUID token does not allocate
+     * @param authToken the authToken to be checked
+     * @return true if the token is valid
+     */
+    boolean isValid(String authToken) {
+        AccessDecision decision = decide(authToken, null, -1);
+        return decision == AccessDecision.ALLOW || decision == AccessDecision.DENY;
+    }
+    
+    /**
+     * Validates authToken and tests whether its User has the Permission with the 
+     * service assigned id, permissionId, in the version policy of the service's 
+     * policy. Never throws, and deciding on a UUID token does not allocate
+     * @param authToken the authToken to be checked
+     * @param policy the PolicySnapshot to decide against, or null to only check the token
+     * @param permissionId the id of the Permission in policy, or -1 to only check the token
+     * @return ALLOW if the token is valid and its User has the Permission, DENY if
+     * they dont, TOKEN_EXPIRED or TOKEN_UNKNOWN if the token is not valid
+     */
+    AccessDecision decide(String authToken, PolicySnapshot policy, int permissionId) {
+        if (signer != null && TokenSigner.isSigned(authToken)) {
+            TokenSigner.Claims claims = verifySigned(authToken);
+            User user = resolveSigned(claims);
+            if (user == null) {
+                return AccessDecision.TOKEN_UNKNOWN;
+            } else if (claims.expiresAt <= clock.millis()) {
+                return AccessDecision.TOKEN_EXPIRED;
+            }
+            return policy != null && policy.hasPermission(user, permissionId) ? AccessDecision.ALLOW : AccessDecision.DENY;
+        }
+        AccessDecision decision = tokens.decide(authToken, clock.millis(), policy, permissionId);
+        if (decision == AccessDecision.TOKEN_UNKNOWN && restore(authToken)) {
+            decision = tokens.decide(authToken, clock.millis(), policy, permissionId);
+        }
+        return decision;
+    }
+    
+    /**
+     * Returns the time authToken expires at
+     * @param authToken the authToken to look up
+     * @return the time the token expires at in epoch milliseconds, or 
+     * Long.MIN_VALUE if authToken is not a valid token
+     */
+    long getExpiry(String authToken) {
+        if (signer != null && TokenSigner.isSigned(authToken)) {
+            TokenSigner.Claims claims = verifySigned(authToken);
+            return claims == null ? Long.MIN_VALUE : claims.expiresAt;
+        }
+        long expiry = tokens.getExpiry(authToken);
+        if (expiry == Long.MIN_VALUE && restore(authToken)) {
+            expiry = tokens.getExpiry(authToken);
+        }
+        return expiry;
+    }
+    
+    /**
+     * moves authToken from the store into the table, if the store has it live and
+     * its User still exists. Concurrent restores of the same token add it once, 
+     * so removing it once on logout removes it for good
+     * @return true if the token is in the table
+     */
+    private boolean restore(String authToken) {
+        TokenStore current = store;
+        if (current == null || !TokenTable.isWellFormed(authToken)) {
+            return false;
+        }
+        long high = TokenTable.parseHigh(authToken);
+        long low = TokenTable.parseLow(authToken);
+        long now = clock.millis();
+        TokenStore.Entry entry = current.find(high, low, now);
+        User user = entry == null ? null : usersByName.apply(entry.userName);
+        if (user == null) {
+            return false;
+        }
+        if (!tokens.putIfAbsent(high, low, user, entry.expiresAt, now)) {
+            return true;
+        }
+        if (current.find(high, low, now) == null) {
+            tokens.remove(authToken);
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * @return the User a verified signed token was minted for, or null if there is
+     * none or the User's credentials changed since
+     */
+    private User resolveSigned(TokenSigner.Claims claims) {
+        if (claims == null) {
+            return null;
+        }
+        User user = userResolver.apply(claims.userName);
+        return user != null && user.getCredentialTag() == claims.credential ? user : null;
+    }
+    
+    /**
+     * verifies a signed token, returning null if it is forged or has been revoked
+     */
+    private TokenSigner.Claims verifySigned(String authToken) {
+        TokenSigner.Claims claims = signer.verify(authToken);
+        revokedTokens.purgeIfDue(clock.millis());
+        if (claims == null || revokedTokens.isRevoked(claims.tokenId, claims.expiresAt)) {
+            return null;
+        }
+        return claims;
+    }
+    
     /**
      * Removes the passed token, authToken from the map. Throws InvalidAccessTokenException 
      * if token is not mapped.
@@ -68,40 +240,139 @@ public class AuthTokenGenerator {
      * of if the authToken is expired
      */
     public void removeToken(String authToken) throws InvalidAccessTokenException {
-        if (tokens.remove(authToken) == null) {
+        if (signer != null && TokenSigner.isSigned(authToken)) {
+            TokenSigner.Claims claims = signer.verify(authToken);
+            long now = clock.millis();
+            if (claims == null || claims.expiresAt <= now
+                    || revokedTokens.isRevoked(claims.tokenId, claims.expiresAt)) {
+                throw new InvalidAccessTokenException("Not a valid Token, could not be removed");
+            }
+            revokedTokens.revoke(claims.tokenId, claims.expiresAt, now);
+            tokenRemoved();
+            return;
+        }
+        TokenStore current = store;
+        boolean stored = current != null && TokenTable.isWellFormed(authToken) && current.remove(
+                TokenTable.parseHigh(authToken), TokenTable.parseLow(authToken), clock.millis());
+        if (!tokens.remove(authToken) && !stored) {
             throw new InvalidAccessTokenException("Not a valid Token, could not be removed");
         }
+        tokenRemoved();
     }
-
+    
+    private void tokenRemoved() {
+        Runnable listener = removalListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+    
     /**
-     * AuthTokenStamp is an Immutable class with only 2 properties, a Date, 
-     * expirationDate and a User, user. AuthTokenStamps are created by AuthTokenGenerator, 
-     * each to track a particular authToken. Every authToken maps to an instance 
-     * of AuthTokenStamp in AuthTokenGenerator HashTable “tokens”
+     * @param removalListener run after each token removed by removeToken(String)
      */
-
-    private class authTokenStamp {
-        private GregorianCalendar date;
-        private User user;
-        
-        public authTokenStamp(User user, GregorianCalendar date) {
-            this.user = user;
-            this.date = date;
-        }
-
-        /**
-         * @return the date
-         */
-        public GregorianCalendar getDate() {
-            return date;
+    void setRemovalListener(Runnable removalListener) {
+        this.removalListener = removalListener;
+    }
+    
+    /**
+     * Evicts every token whose expiration date has passed, and forgets the revoked
+     * signed tokens which have expired. Expired tokens are otherwise evicted as new
+     * tokens are minted, so this only needs calling to release memory on a 
+     * generator which has stopped minting tokens
+     */
+    public void expireTokens() {
+        tokens.expire(clock.millis());
+        revokedTokens.purge(clock.millis());
+        TokenStore current = store;
+        if (current != null) {
+            current.sweep(clock.millis());
         }
-
-        /**
-         * @return the user
-         */
-        public User getUser() {
-            return user;
+    }
+    
+    /**
+     * Keeps the generator's UUID tokens in store from now on, as well as in its 
+     * table. Tokens already in store are found there when they are first presented
+     * @param store the TokenStore, or null to stop storing tokens
+     * @param usersByName looks up the User with a given name, returning null if 
+     * there is none
+     * @return the TokenStore used before, or null
+     */
+    TokenStore setTokenStore(TokenStore store, Function<String, User> usersByName) {
+        this.usersByName = usersByName;
+        TokenStore previous = this.store;
+        this.store = store;
+        return previous;
+    }
+    
+    /**
+     * @return the number of signed tokens logged out before their expiry which
+     * are still remembered as revoked
+     */
+    public int getRevokedTokenCount() {
+        return revokedTokens.size();
+    }
+    
+    /**
+     * Switches the generator to minting signed tokens. UUID tokens minted before 
+     * stay valid until they expire or are removed
+     * @param signer the TokenSigner which mints and verifies the tokens
+     * @param userResolver looks up the User with a given normalized name, returning
+     * null if there is none
+     */
+    void setSigner(TokenSigner signer, Function<String, User> userResolver) {
+        this.signer = signer;
+        this.userResolver = userResolver;
+    }
+    
+    /**
+     * @return the time to live, in milliseconds, of newly minted tokens
+     */
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+    
+    /**
+     * Sets how long newly minted tokens live for. Tokens already minted keep 
+     * the expiry they were minted with
+     * @param timeToLive the time to live, in milliseconds
+     */
+    public void setTimeToLive(long timeToLive) {
+        if (timeToLive <= 0) {
+            throw new IllegalArgumentException("Token time to live must be positive: "+timeToLive);
         }
+        this.timeToLive = timeToLive;
+    }
+    
+    /**
+     * @return the Clock token expiry is read from
+     */
+    public Clock getClock() {
+        return clock;
+    }
+    
+    /**
+     * Sets the Clock token expiry is read from, for example a CoarseClock to avoid
+     * reading the system clock on every validation. The clock must count epoch 
+     * milliseconds, as the system clock does
+     * @param clock the Clock to use
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+    
+    /**
+     * @return the number of UUID tokens currently mapped, including expired tokens
+     * which have not been evicted yet
+     */
+    public int getLiveTokenCount() {
+        return tokens.size();
+    }
+    
+    /**
+     * @return the number of expired tokens evicted since the generator was created
+     */
+    public long getEvictedTokenCount() {
+        return tokens.getEvicted();
     }
     
 }
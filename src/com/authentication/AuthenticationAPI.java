@@ -6,11 +6,39 @@
 
 package com.authentication;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,9 +70,20 @@ import java.util.logging.Logger;
  */
 public class AuthenticationAPI {
     private static final AuthTokenGenerator apiTokenGen = new AuthTokenGenerator();
-    private static final List<Service> services = new ArrayList<>();
-    private static final HashMap<String, HashMap<String, User>> rootUsersPWtable = new HashMap<>();
-    private static final HashMap<User, ArrayList<AuthenticationAPI>> rootUserAss = new HashMap<>();
+    private static final int PARALLEL_THRESHOLD = 4 * BulkAccessTask.LEAF_SIZE;
+    private static final ConcurrentHashMap<String, Registration> services = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, User> rootUsersPWtable = new ConcurrentHashMap<>();
+    private static final PasswordVerifier passwords = new PasswordVerifier(new Pbkdf2PasswordHasher());
+    private static final LoginAdmission rootAdmission = new LoginAdmission();
+    private static final Executor defaultAsyncExecutor = AsyncExecutors.newDefault();
+    private static volatile Executor asyncExecutor = defaultAsyncExecutor;
+    private static volatile Journal journal;
+    private static volatile Path snapshotPath;
+    private static final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    private static final AtomicReference<ScheduledExecutorService> checkpoints = new AtomicReference<>();
+    private static volatile Path tokenStoreDirectory;
+    private static volatile int tokenStoreCapacity;
+    private static final ConcurrentHashMap<User, ConcurrentHashMap<String, AuthenticationAPI>> rootUserAss = new ConcurrentHashMap<>();
     
     private final User rootUser;
     private final Service service;
@@ -58,11 +97,21 @@ public class AuthenticationAPI {
     private AuthenticationAPI(User user, Service service) {
         this.rootUser = user;
         this.service = service;
-        if(!rootUserAss.containsKey(user)) {
-            rootUserAss.put(user, new ArrayList<AuthenticationAPI>());
+    }
+    
+    /**
+     * Registration is the entry of a Service in the registry of services which have
+     * an AuthenticationAPI instance, counting the Root Users with an instance for it.
+     * instances is only changed inside compute calls on the registry for the 
+     * Service's name, which run one at a time for each name
+     */
+    private static final class Registration {
+        private final Service service;
+        private int instances;
+        
+        private Registration(Service service) {
+            this.service = service;
         }
-        rootUserAss.get(user).add(this);
-        services.add(service);
     }
     
     /**
@@ -76,11 +125,10 @@ public class AuthenticationAPI {
     public static AuthenticationAPI getAuthenticationInstance(String authToken, String name) {
         try {
             User user = apiTokenGen.checkToken(authToken);
-            ArrayList<AuthenticationAPI> list = rootUserAss.get(user);
-            for (AuthenticationAPI instance: list) {
-                if (instance.service.getName().trim().compareToIgnoreCase(name.trim()) == 0) {
-                    return instance;
-                }
+            Map<String, AuthenticationAPI> instances = rootUserAss.get(user);
+            AuthenticationAPI instance = instances == null ? null : instances.get(Service.normalizeName(name));
+            if (instance != null) {
+                return instance;
             }
             throw new IllegalArgumentException("\""+name+" is not an existing AuthenticationInstance");
         } catch (InvalidAccessTokenException | IllegalArgumentException ex) {
@@ -100,16 +148,7 @@ public class AuthenticationAPI {
     public static void deleteAuthenticationInstance(String authToken, String serviceName) {
         try {
             User user = apiTokenGen.checkToken(authToken);
-            ArrayList<AuthenticationAPI> list = rootUserAss.get(user);
-            AuthenticationAPI a = null;
-            for (AuthenticationAPI instance: list) {
-                if (instance.service.getName().equals(serviceName)) {
-                    a = instance;
-                }
-            }
-            if(a != null) {
-                rootUserAss.get(user).remove(a);
-            } else {
+            if (!deleteInstance(user, serviceName)) {
                 throw new IllegalArgumentException("Unable to delete. User is not Root User for specified service");
             }
         } catch (InvalidAccessTokenException | IllegalArgumentException ex) {
@@ -118,9 +157,41 @@ public class AuthenticationAPI {
         }
     }
     
+    /**
+     * removes the instance of the rootUser, user, for serviceName, and the service
+     * once no rootUser has an instance for it
+     * @return false if user has no instance for serviceName
+     */
+    static boolean deleteInstance(User user, String serviceName) {
+        Map<String, AuthenticationAPI> instances = rootUserAss.get(user);
+        boolean[] deleted = new boolean[1];
+        long[] seq = new long[1];
+        Lock lock = beginMutation();
+        try {
+            services.computeIfPresent(Service.normalizeName(serviceName), (name, registration) -> {
+                if (instances == null || instances.remove(name) == null) {
+                    return registration;
+                }
+                deleted[0] = true;
+                seq[0] = appendJournal(JournalRecord.DELETE_INSTANCE, user.getUserName(), serviceName);
+                if (--registration.instances > 0) {
+                    return registration;
+                }
+                Service.deleteService(name);
+                deleteTokenStore(registration.service);
+                return null;
+            });
+        } finally {
+            endMutation(lock);
+        }
+        awaitJournal(seq[0]);
+        return deleted[0];
+    }
+    
     /**
      * Checks authToken for validity and creates a new instance of AuthenticationAPI 
-     * with a new Service with the corresponding name and description to the serviceName parameter and serviceDescription parameter
+     * with a new Service with the corresponding name and description to the serviceName parameter and serviceDescription parameter.
+     * If the Root User already has an instance for the service, that instance is returned
      * @param authToken a valid rootUser authToken
      * @param serviceName the name of the service which will be employing the AuthenticationAPI instance
      * @param serviceDescription a description of the the service which will be employing the AuthenticationAPI instance
@@ -129,9 +200,7 @@ public class AuthenticationAPI {
     public static AuthenticationAPI newAuthenticationInstance(String authToken, String serviceName, String serviceDescription) {
         try {
             User user = apiTokenGen.checkToken(authToken);
-            Service service =  Service.newService(serviceName, serviceDescription);
-            AuthenticationAPI newAuth = new AuthenticationAPI(user, service);
-            return newAuth;
+            return newInstance(user, serviceName, serviceDescription);
         } catch (InvalidAccessTokenException ex) {
             System.out.println(ex.getMessage());
             ex.printStackTrace();
@@ -139,6 +208,37 @@ public class AuthenticationAPI {
         }
     }
     
+    /**
+     * returns the instance of the rootUser, user, for serviceName, creating the 
+     * instance, and the service if no other rootUser has one, if needed
+     */
+    static AuthenticationAPI newInstance(User user, String serviceName, String serviceDescription) {
+        Map<String, AuthenticationAPI> instances = rootUserAss.computeIfAbsent(user, key -> new ConcurrentHashMap<>());
+        AuthenticationAPI[] newAuth = new AuthenticationAPI[1];
+        long[] seq = new long[1];
+        Lock lock = beginMutation();
+        try {
+            services.compute(Service.normalizeName(serviceName), (name, registration) -> {
+                if (registration == null) {
+                    registration = new Registration(Service.newService(serviceName, serviceDescription));
+                    attachTokenStore(name, registration.service);
+                }
+                newAuth[0] = instances.get(name);
+                if (newAuth[0] == null) {
+                    newAuth[0] = new AuthenticationAPI(user, registration.service);
+                    instances.put(name, newAuth[0]);
+                    registration.instances++;
+                    seq[0] = appendJournal(JournalRecord.NEW_INSTANCE, user.getUserName(), serviceName, serviceDescription);
+                }
+                return registration;
+            });
+        } finally {
+            endMutation(lock);
+        }
+        awaitJournal(seq[0]);
+        return newAuth[0];
+    }
+    
     /**
      * Returns a list of all services the AuthenticationAPI is being used for 
      * (all the different instances)
@@ -149,7 +249,11 @@ public class AuthenticationAPI {
     public static List<Service> getServices(String authToken) {
         try {
             User user = apiTokenGen.checkToken(authToken);
-            return services;
+            List<Service> list = new ArrayList<>(services.size());
+            for (Registration registration: services.values()) {
+                list.add(registration.service);
+            }
+            return list;
         } catch (InvalidAccessTokenException ex) {
             System.out.println(ex.getMessage());
             ex.printStackTrace();
@@ -163,19 +267,42 @@ public class AuthenticationAPI {
      * @param userName the username of the rootUser
      * @param password the password of the rootUser
      * @return a valid rootUser authToken
+     * @throws LoginRejectedException if the login is throttled or shed by 
+     * admission control
      */
     
     public static String rootUserLogin(String userName, String password) {
-        if (rootUsersPWtable.containsKey(userName)) {
-            HashMap<String, User> table = rootUsersPWtable.get(userName);
-            if (table.containsKey(hashPassword(password))) {
-                User user = table.get(hashPassword(password));
+        long admittedAt = rootAdmission.admit(userName);
+        try {
+            User user = rootUsersPWtable.get(userName);
+            if (passwords.verify(user, password)) {
                 return apiTokenGen.newAuthToken(user);
-            } 
+            }
+        } catch (RejectedExecutionException ex) {
+            throw rootAdmission.shed();
+        } finally {
+            rootAdmission.release(admittedAt);
         }
         throw new IllegalArgumentException("Incorrect Password and/or Username");
     }
     
+    /**
+     * Checks authToken for validity as RootUser and returns the counters of the
+     * admission control rootUserLogin goes through
+     * @param authToken a valid rootUser authToken
+     * @return the admitted, throttled and shed counts of root user logins
+     */
+    public static LoginAdmissionStats getRootLoginAdmissionStats(String authToken) {
+        try {
+            apiTokenGen.checkToken(authToken);
+            return rootAdmission.stats();
+        } catch (InvalidAccessTokenException ex) {
+            System.out.println(ex.getMessage());
+            ex.printStackTrace();
+            return null;
+        }
+    }
+    
     /**
      * Create a new rootuser login, returns an authToken which may be used to call newAuthenticationInstance()
      * @param username the username of the rootUser
@@ -183,21 +310,26 @@ public class AuthenticationAPI {
      * @return a valid rootUser authToken
      */
     public static String newRootUser(String username, String password) {
-        if(rootUsersPWtable.containsKey(username)) {
-            try {
-                throw new UserNameAlreadyExistsException(username);
-            } catch (UserNameAlreadyExistsException ex) {
-                System.out.println(ex.getMessage());
-                ex.printStackTrace();
-                return null;
+        String hash = passwords.hash(password);
+        User newUser = User.newUser(username, hash);
+        long seq;
+        Lock lock = beginMutation();
+        try {
+            if(rootUsersPWtable.putIfAbsent(username, newUser) != null) {
+                try {
+                    throw new UserNameAlreadyExistsException(username);
+                } catch (UserNameAlreadyExistsException ex) {
+                    System.out.println(ex.getMessage());
+                    ex.printStackTrace();
+                    return null;
+                }
             }
-        } else {
-            User newUser = User.newUser(username, hashPassword(password));
-            HashMap<String,User> map = new HashMap<>();
-            map.put(hashPassword(password), newUser);
-            rootUsersPWtable.put(username, map);
-            return apiTokenGen.newAuthToken(newUser);
+            seq = appendJournal(JournalRecord.NEW_ROOT_USER, username, hash);
+        } finally {
+            endMutation(lock);
         }
+        awaitJournal(seq);
+        return apiTokenGen.newAuthToken(newUser);
     }
     
     /**
@@ -212,8 +344,9 @@ public class AuthenticationAPI {
     public String addUser(String authToken, String userName, String password) {
         try {
             apiTokenGen.checkToken(authToken);
-            User user = User.newUser(service, userName, hashPassword(password));
-            return user.getUserName();
+            String hash = passwords.hash(password);
+            return journaled(() -> User.newUser(service, userName, hash).getUserName(), 
+                    JournalRecord.ADD_USER, userName, hash);
         } catch (UserNameAlreadyExistsException | InvalidAccessTokenException ex) {
             System.out.println(ex.getMessage());
             ex.printStackTrace();
@@ -230,9 +363,27 @@ public class AuthenticationAPI {
     public List<User> getUsers(String authToken) {
         try {
             apiTokenGen.checkToken(authToken);
-            List<User> list = new ArrayList<>(service.getUsers().values());
-            Collections.sort(list);
-            return list;
+            return new ArrayList<>(service.getSortedUsers());
+        } catch (InvalidAccessTokenException ex) {
+            System.out.println(ex.getMessage());
+            ex.printStackTrace();
+            return null;
+        }
+    }
+    
+    /**
+     * Checks authToken for validity as RootUser, returns the page of the service's
+     * Users following cursor, in the order of getUsers(String). Each page costs the 
+     * Users on it, not a copy and sort of all of them
+     * @param authToken a valid rootUser authToken
+     * @param cursor the next cursor of the previous page, or null for the first page
+     * @param limit the most Users on the page
+     * @return the page of Users
+     */
+    public Page<User> getUsers(String authToken, String cursor, int limit) {
+        try {
+            apiTokenGen.checkToken(authToken);
+            return service.getUsers(cursor, limit);
         } catch (InvalidAccessTokenException ex) {
             System.out.println(ex.getMessage());
             ex.printStackTrace();
@@ -249,7 +400,7 @@ public class AuthenticationAPI {
     public void removeUser(String authToken, String userID) {
         try {
             apiTokenGen.checkToken(authToken);
-            service.removeUser(userID);
+            journaled(() -> service.removeUser(userID), JournalRecord.REMOVE_USER, userID);
         } catch (InvalidAccessTokenException ex) {
             System.out.println(ex.getMessage());
             ex.printStackTrace();        
@@ -267,15 +418,25 @@ public class AuthenticationAPI {
     public void updateUserLogin(String authToken, String userName, String newUsername, String newPassword) {
         try {
             apiTokenGen.checkToken(authToken);
-            User user = service.getUser(userName);
-            user.setPassword(hashPassword(newPassword));      
-            user.setUserName(newUsername);
+            String hash = passwords.hash(newPassword);
+            journaled(() -> updateUserLogin(service.getUser(userName), newUsername, hash), 
+                    JournalRecord.UPDATE_USER_LOGIN, userName, newUsername, hash);
         } catch (UserNameAlreadyExistsException | InvalidAccessTokenException ex) {
             System.out.println(ex.getMessage());
             ex.printStackTrace();
         } 
     }
     
+    /**
+     * renames user, then replaces its password hash, so a rejected name leaves the
+     * User as it was
+     */
+    private static User updateUserLogin(User user, String newUsername, String hash) throws UserNameAlreadyExistsException {
+        user.setUserName(newUsername);
+        user.setPassword(hash);
+        return user;
+    }
+    
     /**
      * Checks the authToken for validity as a RootUser. returns the roles associated
      * with the User who has userName, userName
@@ -296,10 +457,32 @@ public class AuthenticationAPI {
         }
     }
     
+    /**
+     * Checks the authToken for validity as a RootUser. returns the page of the roles
+     * of the User who has userName, userName, following cursor
+     * @param authToken a valid rootUser authToken
+     * @param userName the username of the User in question
+     * @param cursor the next cursor of the previous page, or null for the first page
+     * @param limit the most Roles on the page
+     * @return the page of the User's Roles
+     */
+    public Page<Role> getUserRoles(String authToken, String userName, String cursor, int limit) {
+        try {
+            apiTokenGen.checkToken(authToken);
+            User user = service.getUser(userName);       
+            return user.getRoles(cursor, limit);
+        } catch (InvalidAccessTokenException ex) {
+            System.out.println(ex.getMessage());
+            ex.printStackTrace();
+            return null;
+        }
+    }
+    
     /**
      * Checks authToken for validity as RootUser, checks username and password 
      * for match in service’s user table, returns authToken for User if found, 
-     * raises AuthenticationException if not found
+     * raises AuthenticationException if not found. Logins throttled or shed by 
+     * admission control return null at once, without logging
      * @param authToken a valid rootUser authToken
      * @param userName the username of the User logging in
      * @param password the password of the User logging in
@@ -309,8 +492,9 @@ public class AuthenticationAPI {
     public String logIn(String authToken, String userName, String password) {
         try {
             apiTokenGen.checkToken(authToken);
-            User user = service.getUser(userName, hashPassword(password));
-            return service.getAuthTokenGenerator().newAuthToken(user);
+            return logInUser(userName, password);
+        } catch (LoginRejectedException ex) {
+            return null;
         } catch (AuthenticationException | InvalidAccessTokenException ex) {
             System.out.println(ex.getMessage());
             ex.printStackTrace();
@@ -328,13 +512,50 @@ public class AuthenticationAPI {
     public void logout(String rotAuthToken, String usrAuthToken) {
         try {
             apiTokenGen.checkToken(rotAuthToken);            
-            service.getAuthTokenGenerator().removeToken(usrAuthToken);
+            logoutUser(usrAuthToken);
         } catch (InvalidAccessTokenException ex) {
             System.out.println(ex.getMessage());
             ex.printStackTrace();
         }
     }
     
+    /**
+     * Checks authToken for validity as RootUser, sets how long user authTokens 
+     * minted by the service's logIn live for. Tokens already minted keep their expiry
+     * @param authToken a valid rootUser authToken
+     * @param timeToLive the time to live of new user authTokens, in milliseconds
+     */
+    
+    public void setTokenTimeToLive(String authToken, long timeToLive) {
+        try {
+            apiTokenGen.checkToken(authToken);
+            journaled(() -> service.getAuthTokenGenerator().setTimeToLive(timeToLive), 
+                    JournalRecord.SET_TOKEN_TTL, Long.toString(timeToLive));
+        } catch (InvalidAccessTokenException | IllegalArgumentException ex) {
+            System.out.println(ex.getMessage());
+            ex.printStackTrace();
+        }
+    }
+    
+    /**
+     * Checks authToken for validity as RootUser, switches the service's logIn to
+     * minting self-describing tokens signed with key. Signed tokens are verified by
+     * recomputing their HMAC and name the service and User, so any process holding
+     * key and the same Users can check them, this one too after a restart
+     * @param authToken a valid rootUser authToken
+     * @param key the HMAC-SHA256 key, at least 32 bytes
+     */
+    
+    public void enableSignedTokens(String authToken, byte[] key) {
+        try {
+            apiTokenGen.checkToken(authToken);
+            service.enableSignedTokens(key);
+        } catch (InvalidAccessTokenException | IllegalArgumentException ex) {
+            System.out.println(ex.getMessage());
+            ex.printStackTrace();
+        }
+    }
+    
     /**
      * Checks authToken for validity as RootUser, adds Role instance corresponding 
      * with roleName parameter to User corresponding with userName’s List of Roles
@@ -345,8 +566,8 @@ public class AuthenticationAPI {
     public void assignRole(String authToken, String userName, String roleName) {
         try {
             apiTokenGen.checkToken(authToken);
-            User user = service.getUser(userName);
-            user.addRole(service.getRole(roleName));
+            journaled(() -> service.getUser(userName).addRole(service.getRole(roleName)), 
+                    JournalRecord.ASSIGN_ROLE, userName, roleName);
         } catch (InvalidAccessTokenException ex) {
             System.out.println(ex.getMessage());
             ex.printStackTrace();
@@ -365,8 +586,8 @@ public class AuthenticationAPI {
     public void removeRole(String authToken,String userName, String roleName) {
         try {
             apiTokenGen.checkToken(authToken);
-            User user = service.getUser(userName);
-            user.removeRole(roleName);
+            journaled(() -> service.getUser(userName).removeRole(roleName), 
+                    JournalRecord.REMOVE_ROLE, userName, roleName);
         } catch (InvalidAccessTokenException ex) {
             System.out.println(ex.getMessage());
             ex.printStackTrace();
@@ -387,10 +608,9 @@ public class AuthenticationAPI {
     public Role addRole(String authToken, String roleName, String description, List<Entitlement> permissions) {
         try {
             apiTokenGen.checkToken(authToken);
-            Role newRole = Role.newRole(service, roleName, description);
-            newRole.addPermission(permissions);
-            return newRole;
-        } catch (InvalidAccessTokenException ex) {
+            return journaled(() -> addRole(service, roleName, description, permissions), 
+                    JournalRecord.ADD_ROLE, journalFields(permissions, roleName, description));
+        } catch (InvalidAccessTokenException | IllegalArgumentException ex) {
             System.out.println(ex.getMessage());
             ex.printStackTrace();
             return null;
@@ -421,7 +641,7 @@ public class AuthenticationAPI {
     public void deleteRole(String authToken, String roleID) {
         try {
             apiTokenGen.checkToken(authToken);
-            service.deleteRole(roleID);
+            journaled(() -> service.deleteRole(roleID), JournalRecord.DELETE_ROLE, roleID);
         } catch (InvalidAccessTokenException ex) {
             System.out.println(ex.getMessage());
             ex.printStackTrace();
@@ -444,13 +664,9 @@ public class AuthenticationAPI {
     public Role updateRole(String authToken, String roleName, String newroleName, String description, List<Entitlement> permissions) {
         try {
             apiTokenGen.checkToken(authToken);
-            Role role = service.getRole(roleName);
-            role.removePermissions();
-            role.addPermission(permissions);
-            role.setDescription(description);
-            role.setName(newroleName);
-            return role;
-        } catch (InvalidAccessTokenException ex) {
+            return journaled(() -> updateRole(service.getRole(roleName), newroleName, description, permissions), 
+                    JournalRecord.UPDATE_ROLE, journalFields(permissions, roleName, newroleName, description));
+        } catch (InvalidAccessTokenException | IllegalArgumentException ex) {
             System.out.println(ex.getMessage());
             ex.printStackTrace();
             return null;
@@ -469,14 +685,9 @@ public class AuthenticationAPI {
     public Role addPermissionToRole(String authToken, String roleName, String permissionName) {
         try {
             apiTokenGen.checkToken(authToken);
-            Role role = service.getRole(roleName);
-            Entitlement permission = service.getPermission(permissionName);
-            if (permission == null) {
-                permission = service.getRole(permissionName);
-            }
-            role.addPermission(permission);
-            return role;
-        } catch (InvalidAccessTokenException ex) {
+            return journaled(() -> addPermissionToRole(service, roleName, permissionName), 
+                    JournalRecord.ADD_PERMISSION_TO_ROLE, roleName, permissionName);
+        } catch (InvalidAccessTokenException | IllegalArgumentException ex) {
             System.out.println(ex.getMessage());
             ex.printStackTrace();
             return null;
@@ -501,6 +712,25 @@ public class AuthenticationAPI {
         }
     }
     
+    /**
+     * Checks authToken for validity as RootUser, returns the page of the service's 
+     * Roles following cursor, in the order of getRoles(String)
+     * @param authToken a valid rootUser authToken
+     * @param cursor the next cursor of the previous page, or null for the first page
+     * @param limit the most Roles on the page
+     * @return the page of Roles
+     */
+    public Page<Role> getRoles(String authToken, String cursor, int limit) {
+        try {
+            apiTokenGen.checkToken(authToken);
+            return service.getRoles(cursor, limit);
+        } catch (InvalidAccessTokenException ex) {
+            System.out.println(ex.getMessage());
+            ex.printStackTrace();
+            return null;
+        }
+    }
+    
     /**
      * Checks authToken for validity as RootUser, creates a new Permission 
      * object with the name, permissionName and with the description permissionDescrip. 
@@ -514,7 +744,8 @@ public class AuthenticationAPI {
     public Permission newPermission(String authToken, String perName, String perDescription) {
         try {
             apiTokenGen.checkToken(authToken);
-            return Permission.newPermission(service, perName, perDescription);
+            return journaled(() -> Permission.newPermission(service, perName, perDescription), 
+                    JournalRecord.NEW_PERMISSION, perName, perDescription);
         } catch (InvalidAccessTokenException ex) {
             Logger.getLogger(AuthenticationAPI.class.getName()).log(Level.SEVERE, null, ex);
             return null;
@@ -532,8 +763,8 @@ public class AuthenticationAPI {
     public void removeEntitlement(String authToken, String roleID, String entitlementName) {
         try {
             apiTokenGen.checkToken(authToken);
-            Role role = service.getRole(roleID);
-            role.removePermission(entitlementName);
+            journaled(() -> service.getRole(roleID).removePermission(entitlementName), 
+                    JournalRecord.REMOVE_ENTITLEMENT, roleID, entitlementName);
         } catch (InvalidAccessTokenException ex) {
             System.out.println(ex.getMessage());
             ex.printStackTrace();
@@ -554,10 +785,8 @@ public class AuthenticationAPI {
     public Permission updatePermission(String authToken, String permissionName, String newPerName, String description) {
         try {
             apiTokenGen.checkToken(authToken);
-            Permission permission = service.getPermission(permissionName);
-            permission.setDescription(description);
-            permission.setName(newPerName);
-            return permission;
+            return journaled(() -> updatePermission(service.getPermission(permissionName), newPerName, description), 
+                    JournalRecord.UPDATE_PERMISSION, permissionName, newPerName, description);
         } catch (InvalidAccessTokenException ex) {
             System.out.println(ex.getMessage());
             ex.printStackTrace();
@@ -583,6 +812,25 @@ public class AuthenticationAPI {
         }
     }
     
+    /**
+     * Checks authToken for validity as RootUser, returns the page of the service's 
+     * Permissions following cursor, in the order of getPermissions(String)
+     * @param authToken a valid rootUser authToken
+     * @param cursor the next cursor of the previous page, or null for the first page
+     * @param limit the most Permissions on the page
+     * @return the page of Permissions
+     */
+    public Page<Permission> getPermissions(String authToken, String cursor, int limit) {
+        try {
+            apiTokenGen.checkToken(authToken);
+            return service.getPermissions(cursor, limit);
+        } catch (InvalidAccessTokenException ex) {
+            System.out.println(ex.getMessage());
+            ex.printStackTrace();
+            return null;
+        }
+    }
+    
     /**
      * Checks authToken for validity as RootUser, returns a List of the Permissions
      * associate with the Role object who's name matched the parameter
@@ -635,7 +883,7 @@ public class AuthenticationAPI {
     public void deletePermission(String authToken, String permissionName) {
         try {
             apiTokenGen.checkToken(authToken);
-            service.removePermission(permissionName);
+            journaled(() -> service.removePermission(permissionName), JournalRecord.DELETE_PERMISSION, permissionName);
         } catch (InvalidAccessTokenException ex) {
             System.out.println(ex.getMessage());
             ex.printStackTrace();
@@ -655,18 +903,121 @@ public class AuthenticationAPI {
      */
     
     public boolean checkAccessBOOL(String rootAuthToken, String authToken, String permission) {
+        return decideAccess(rootAuthToken, authToken, permission) == AccessDecision.ALLOW;
+    }
+    
+    /**
+     * Checks rootAuthToken for validity as RootUser, authToken for validity as
+     * a User token and tests whether the User has a Permission matching permission.
+     * Never throws or logs; every outcome is one of the preallocated AccessDecision 
+     * values, so a denied check does not allocate
+     * @param rootAuthToken a valid rootUser authToken
+     * @param authToken the users authToken
+     * @param permission the permission to check
+     * @return ALLOW if the User has the permission, DENY if they dont, TOKEN_EXPIRED
+     * or TOKEN_UNKNOWN if authToken is not valid and ROOT_INVALID if rootAuthToken 
+     * is not valid
+     */
+    
+    public AccessDecision decideAccess(String rootAuthToken, String authToken, String permission) {
+        if (!apiTokenGen.isValid(rootAuthToken)) {
+            return AccessDecision.ROOT_INVALID;
+        }
+        return decideUserAccess(authToken, permission);
+    }
+    
+    /**
+     * decides access for authToken, whose root token has already been checked, 
+     * through the decision cache if the service has one
+     */
+    AccessDecision decideUserAccess(String authToken, String permission) {
+        DecisionCache cache = service.getDecisionCache();
+        if (cache == null) {
+            PolicySnapshot policy = service.getPolicy();
+            return service.getAuthTokenGenerator().decide(authToken, policy, policy.getPermissionId(permission));
+        }
+        AuthTokenGenerator tokenGen = service.getAuthTokenGenerator();
+        long generation = service.getGeneration();
+        AccessDecision decision = cache.get(authToken, permission, generation, tokenGen.getClock().millis());
+        if (decision == null) {
+            PolicySnapshot policy = service.getPolicy();
+            decision = tokenGen.decide(authToken, policy, policy.getPermissionId(permission));
+            if (decision == AccessDecision.ALLOW || decision == AccessDecision.DENY) {
+                cache.put(authToken, permission, generation, tokenGen.getExpiry(authToken), decision);
+            }
+        }
+        return decision;
+    }
+    
+    /**
+     * Like decideAccess(String, String, String), but decides against the given 
+     * version of the service's policy rather than the current one, so several 
+     * checks can be made against one known version
+     * @param rootAuthToken a valid rootUser authToken
+     * @param authToken the users authToken
+     * @param permission the permission to check
+     * @param policy a PolicySnapshot returned by getPolicySnapshot(String)
+     * @return ALLOW if the User has the permission in policy, DENY if they dont, 
+     * TOKEN_EXPIRED or TOKEN_UNKNOWN if authToken is not valid and ROOT_INVALID if 
+     * rootAuthToken is not valid
+     */
+    public AccessDecision decideAccess(String rootAuthToken, String authToken, String permission, PolicySnapshot policy) {
+        if (!apiTokenGen.isValid(rootAuthToken)) {
+            return AccessDecision.ROOT_INVALID;
+        }
+        return service.getAuthTokenGenerator().decide(authToken, policy, policy.getPermissionId(permission));
+    }
+    
+    /**
+     * Checks authToken for validity as RootUser, then starts caching the access 
+     * decisions of the service, or stops if maximumSize is 0. A cached decision is
+     * dropped as soon as a Role, Permission or role assignment of the service 
+     * changes, a user logs out or the user's token expires
+     * @param authToken a valid rootUser authToken
+     * @param maximumSize the most decisions to cache, or 0 to stop caching
+     */
+    public void setDecisionCacheSize(String authToken, int maximumSize) {
         try {
-            apiTokenGen.checkToken(rootAuthToken);
-            User user = service.getAuthTokenGenerator().checkToken(authToken);
-            return user.hasPermission(permission);
-        } catch (AccessDeniedException ex) {
+            apiTokenGen.checkToken(authToken);
+            service.setDecisionCacheSize(maximumSize);
+        } catch (InvalidAccessTokenException ex) {
             System.out.println(ex.getMessage());
             ex.printStackTrace();
-            return false;
+        }
+    }
+    
+    /**
+     * Checks authToken for validity as RootUser and returns the hit, miss and 
+     * eviction counts of the service's decision cache
+     * @param authToken a valid rootUser authToken
+     * @return the counters of the decision cache, or null if decisions are not cached
+     */
+    public DecisionCacheStats getDecisionCacheStats(String authToken) {
+        try {
+            apiTokenGen.checkToken(authToken);
+            return service.getDecisionCacheStats();
         } catch (InvalidAccessTokenException ex) {
             System.out.println(ex.getMessage());
             ex.printStackTrace();
-            return false;
+            return null;
+        }
+    }
+    
+    /**
+     * Checks authToken for validity as RootUser and returns the current version of
+     * the service's policy. The snapshot never changes; its version tells which
+     * policy decisions made against it were made with
+     * @param authToken a valid rootUser authToken
+     * @return the current PolicySnapshot of the service
+     */
+    public PolicySnapshot getPolicySnapshot(String authToken) {
+        try {
+            apiTokenGen.checkToken(authToken);
+            return service.getPolicy();
+        } catch (InvalidAccessTokenException ex) {
+            System.out.println(ex.getMessage());
+            ex.printStackTrace();
+            return null;
         }
     }
     
@@ -685,58 +1036,1032 @@ public class AuthenticationAPI {
      */
     
     public void checkAccess(String rootAuthToken, String authToken, String permission) throws InvalidAccessTokenException, AccessDeniedException {
+        if (!apiTokenGen.isValid(rootAuthToken)) {
             apiTokenGen.checkToken(rootAuthToken);
+        }
+        checkUserAccess(authToken, permission);
+    }
+    
+    /**
+     * checkAccess for authToken, whose root token has already been checked
+     */
+    void checkUserAccess(String authToken, String permission) throws InvalidAccessTokenException, AccessDeniedException {
+        if (decideUserAccess(authToken, permission) != AccessDecision.ALLOW) {
             User user = service.getAuthTokenGenerator().checkToken(authToken);
-            user.hasPermission(permission);
+            throw new AccessDeniedException(user, permission);
+        }
     }
     
     /**
-     * a test method to check if the token passed to the method is
-     * a valid token or not
-     * @param authToken the user's token to be checked
-     * @return ture if the token is valid, false if the token is a valid token or expired
+     * Checks rootAuthToken for validity as RootUser and authToken for validity as
+     * a User token once, then tests each Permission in permissions against the 
+     * same version of the service's policy. Much cheaper than calling 
+     * checkAccess(String, String, String) once per Permission
+     * @param rootAuthToken a valid rootUser authToken
+     * @param authToken a valid user authToken
+     * @param permissions the names of the permissions to check
+     * @return a BitSet with bit i set if the User has the i-th Permission of 
+     * permissions, in iteration order
+     * @throws InvalidAccessTokenException if the User's access token or the root 
+     * access token is not a valid token or expired
      */
     
-    public boolean checkUserToken(String authToken) {
+    public BitSet checkAccess(String rootAuthToken, String authToken, Collection<String> permissions) throws InvalidAccessTokenException {
+        if (!apiTokenGen.isValid(rootAuthToken)) {
+            apiTokenGen.checkToken(rootAuthToken);
+        }
+        return checkUserAccess(authToken, permissions);
+    }
+    
+    /**
+     * the batch checkAccess for authToken, whose root token has already been checked
+     */
+    BitSet checkUserAccess(String authToken, Collection<String> permissions) throws InvalidAccessTokenException {
+        User user = service.getAuthTokenGenerator().findUser(authToken);
+        if (user == null) {
+            user = service.getAuthTokenGenerator().checkToken(authToken);
+        }
+        PolicySnapshot policy = service.getPolicy();
+        BitSet granted = new BitSet(permissions.size());
+        int i = 0;
+        for (String permission: permissions) {
+            if (policy.hasPermission(user, policy.getPermissionId(permission))) {
+                granted.set(i);
+            }
+            i++;
+        }
+        return granted;
+    }
+    
+    /**
+     * Checks rootAuthToken for validity as RootUser once, then tests which of the 
+     * Users holding authTokens have a Permission matching permission, all against
+     * the same version of the service's policy. Invalid or expired user tokens are
+     * simply not allowed; nothing is thrown or logged for them. Large inputs are 
+     * split across the common fork/join pool, small ones are checked on the 
+     * calling thread
+     * @param rootAuthToken a valid rootUser authToken
+     * @param authTokens the users authTokens
+     * @param permission the permission to check
+     * @return a BitSet with bit i set if the i-th token of authTokens is valid and 
+     * its User has the permission
+     * @throws InvalidAccessTokenException if the root access token is not a valid 
+     * token or expired
+     */
+    
+    public BitSet checkAccess(String rootAuthToken, List<String> authTokens, String permission) throws InvalidAccessTokenException {
+        if (!apiTokenGen.isValid(rootAuthToken)) {
+            apiTokenGen.checkToken(rootAuthToken);
+        }
+        return checkUsersAccess(authTokens, permission);
+    }
+    
+    /**
+     * the bulk checkAccess for authTokens, whose root token has already been checked
+     */
+    BitSet checkUsersAccess(List<String> authTokens, String permission) {
+        List<String> tokens = authTokens instanceof RandomAccess ? authTokens : new ArrayList<>(authTokens);
+        PolicySnapshot policy = service.getPolicy();
+        long[] words = new long[(tokens.size() + 63) >>> 6];
+        BulkAccessTask task = new BulkAccessTask(service.getAuthTokenGenerator(), policy, 
+                policy.getPermissionId(permission), tokens, words, 0, tokens.size());
+        if (tokens.size() < PARALLEL_THRESHOLD || ForkJoinPool.getCommonPoolParallelism() < 2) {
+            task.decideRange();
+        } else {
+            ForkJoinPool.commonPool().invoke(task);
+        }
+        return BitSet.valueOf(words);
+    }
+    
+    /**
+     * logs in the User with userName, whose root token has already been checked
+     */
+    String logInUser(String userName, String password) throws AuthenticationException {
+        LoginAdmission admission = service.getLoginAdmission();
+        long admittedAt = admission.admit(userName);
+        User user = service.getUser(userName);
+        String stored = user == null ? null : user.getPassword();
+        boolean verified;
         try {
-            service.getAuthTokenGenerator().checkToken(authToken);
-            return true;
-        } catch (InvalidAccessTokenException ex) {
-            System.out.println(ex.getMessage());
-            ex.printStackTrace();
-            return false;
+            verified = passwords.verify(user, password);
+        } catch (RejectedExecutionException ex) {
+            throw admission.shed();
+        } finally {
+            admission.release(admittedAt);
+        }
+        if (!verified) {
+            throw new AuthenticationException("Incorrect UserName and/or Password", userName, password);
         }
+        journalRehash(user, userName, stored);
+        return service.getAuthTokenGenerator().newAuthToken(user);
     }
     
     /**
-     * Checks authToken for validity as RootUser,  retruns String representation 
-     * of all Users of service and their Roles, all Roles (w/description) of 
-     * service and their Permissions and all Permissions (w/description) of service
-     * @param authToken a valid rootUser authToken
-     * @return a String representation of the service's Inventory (Users, Roles and Permissions)
+     * journals the new hash a login stored for user, if the login rehashed its 
+     * password with the current PasswordHasher, so the stored hash, and with it the
+     * credential tag signed tokens carry, is the same after a restart. Replayed, 
+     * the hash is only replaced if it is still stored
      */
+    private void journalRehash(User user, String userName, String stored) {
+        String rehashed = user.getPassword();
+        if (journal != null && rehashed != stored) {
+            journaled(() -> { }, JournalRecord.REHASH_PASSWORD, userName, stored, rehashed);
+        }
+    }
     
-    public String getInventory(String authToken) {
+    /**
+     * Checks authToken for validity as RootUser, then sets the executor the async
+     * methods of every instance complete their work on. By default that is one 
+     * virtual thread per task where the runtime has virtual threads, and a cached
+     * pool of daemon threads otherwise
+     * @param authToken a valid rootUser authToken
+     * @param executor the executor to use, or null for the default one
+     */
+    public static void setAsyncExecutor(String authToken, Executor executor) {
         try {
             apiTokenGen.checkToken(authToken);
-            InventoryVisitor visitor = new InventoryVisitor();
-            return visitor.getInventory(service);
+            asyncExecutor = executor == null ? defaultAsyncExecutor : executor;
         } catch (InvalidAccessTokenException ex) {
             System.out.println(ex.getMessage());
             ex.printStackTrace();
-            return null;
         }
     }
     
     /**
-     * A basic hashing method which takes the parameter password and returns
-     * a hashed version of it
-     * @param password the password to be hashed
-     * @return the hashed password
+     * Like logIn(String, String, String), without waiting for the password to be
+     * checked. The calling thread only checks the root token and admission control;
+     * the password is checked on the password threads and the authToken is made on
+     * the async executor. Instead of returning null, the future completes 
+     * exceptionally with the InvalidAccessTokenException, LoginRejectedException or 
+     * AuthenticationException
+     * @param authToken a valid rootUser authToken
+     * @param userName the username of the User logging in
+     * @param password the password of the User logging in
+     * @return a future completed with a valid user authToken for the User with name, userName
      */
+    public CompletableFuture<String> logInAsync(String authToken, String userName, String password) {
+        try {
+            apiTokenGen.checkToken(authToken);
+            return logInUserAsync(userName, password);
+        } catch (InvalidAccessTokenException | LoginRejectedException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+    
+    /**
+     * logInUser without waiting, for the User with userName, whose root token has 
+     * already been checked
+     */
+    CompletableFuture<String> logInUserAsync(String userName, String password) {
+        LoginAdmission admission = service.getLoginAdmission();
+        long admittedAt = admission.admit(userName);
+        User user = service.getUser(userName);
+        String stored = user == null ? null : user.getPassword();
+        CompletableFuture<Boolean> verified;
+        try {
+            verified = passwords.verifyAsync(user, password);
+        } catch (RejectedExecutionException ex) {
+            admission.release(admittedAt);
+            throw admission.shed();
+        }
+        return verified.whenComplete((result, ex) -> admission.release(admittedAt))
+                .thenApplyAsync(result -> {
+                    if (!result) {
+                        throw new CompletionException(new AuthenticationException("Incorrect UserName and/or Password", userName, password));
+                    }
+                    journalRehash(user, userName, stored);
+                    return service.getAuthTokenGenerator().newAuthToken(user);
+                }, asyncExecutor);
+    }
     
-    private static String hashPassword(String password) {
-        String p = password.hashCode()+"";
-        return p.hashCode()+"";
+    /**
+     * Like addUser(String, String, String), without waiting for the password to be
+     * hashed. Instead of returning null, the future completes exceptionally with 
+     * the InvalidAccessTokenException, or the exception raised for a duplicate userName
+     * @param authToken a valid rootUser authToken
+     * @param userName the username of the user
+     * @param password the password of the user
+     * @return a future completed with the username of the new User
+     */
+    public CompletableFuture<String> addUserAsync(String authToken, String userName, String password) {
+        try {
+            apiTokenGen.checkToken(authToken);
+            return passwords.hashAsync(password).thenApplyAsync(hash -> {
+                try {
+                    return journaled(() -> User.newUser(service, userName, hash).getUserName(), 
+                            JournalRecord.ADD_USER, userName, hash);
+                } catch (UserNameAlreadyExistsException ex) {
+                    throw new CompletionException(ex);
+                }
+            }, asyncExecutor);
+        } catch (InvalidAccessTokenException | RejectedExecutionException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+    
+    /**
+     * Like checkAccess(String, String, String), returning a future. A single check 
+     * takes less than handing it to another thread would, so it is decided on the 
+     * calling thread and the future returned is already complete: normally if the 
+     * User has the permission, exceptionally with the InvalidAccessTokenException or 
+     * AccessDeniedException otherwise
+     * @param rootAuthToken a valid rootUser authToken
+     * @param authToken a valid user authToken
+     * @param permission the permission to check
+     * @return a completed future
+     */
+    public CompletableFuture<Void> checkAccessAsync(String rootAuthToken, String authToken, String permission) {
+        try {
+            checkAccess(rootAuthToken, authToken, permission);
+            return CompletableFuture.completedFuture(null);
+        } catch (InvalidAccessTokenException | AccessDeniedException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+    
+    /**
+     * Like checkAccess(String, String, Collection), returning a future. Decided on
+     * the calling thread, like checkAccessAsync(String, String, String)
+     * @param rootAuthToken a valid rootUser authToken
+     * @param authToken a valid user authToken
+     * @param permissions the names of the permissions to check
+     * @return a completed future with the BitSet checkAccess(String, String, Collection)
+     * returns, or completed exceptionally with the InvalidAccessTokenException
+     */
+    public CompletableFuture<BitSet> checkAccessAsync(String rootAuthToken, String authToken, Collection<String> permissions) {
+        try {
+            return CompletableFuture.completedFuture(checkAccess(rootAuthToken, authToken, permissions));
+        } catch (InvalidAccessTokenException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+    
+    /**
+     * Like checkAccess(String, List, String), returning a future. The root token is
+     * checked on the calling thread; inputs large enough to be split across the 
+     * fork/join pool are checked on the async executor, smaller ones on the calling
+     * thread
+     * @param rootAuthToken a valid rootUser authToken
+     * @param authTokens the users authTokens
+     * @param permission the permission to check
+     * @return a future completed with the BitSet checkAccess(String, List, String)
+     * returns, or completed exceptionally with the InvalidAccessTokenException
+     */
+    public CompletableFuture<BitSet> checkAccessAsync(String rootAuthToken, List<String> authTokens, String permission) {
+        try {
+            if (!apiTokenGen.isValid(rootAuthToken)) {
+                apiTokenGen.checkToken(rootAuthToken);
+            }
+            if (authTokens.size() < PARALLEL_THRESHOLD) {
+                return CompletableFuture.completedFuture(checkUsersAccess(authTokens, permission));
+            }
+            return CompletableFuture.supplyAsync(() -> checkUsersAccess(authTokens, permission), asyncExecutor);
+        } catch (InvalidAccessTokenException | RejectedExecutionException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+    
+    /**
+     * Checks authToken for validity as RootUser, then sets the login rate limits of
+     * the service. Logins over either limit are rejected before their password is
+     * checked
+     * @param authToken a valid rootUser authToken
+     * @param userRate the logins per second let through for each user name
+     * @param userBurst the logins let through at once for each user name
+     * @param serviceRate the logins per second let through for the whole service
+     * @param serviceBurst the logins let through at once for the whole service
+     */
+    public void setLoginRateLimits(String authToken, double userRate, int userBurst, double serviceRate, int serviceBurst) {
+        try {
+            apiTokenGen.checkToken(authToken);
+            service.getLoginAdmission().setLimits(userRate, userBurst, serviceRate, serviceBurst);
+        } catch (InvalidAccessTokenException | IllegalArgumentException ex) {
+            System.out.println(ex.getMessage());
+            ex.printStackTrace();
+        }
+    }
+    
+    /**
+     * Checks authToken for validity as RootUser and returns the counters of the
+     * service's login admission control
+     * @param authToken a valid rootUser authToken
+     * @return the admitted, throttled and shed counts of logins to the service
+     */
+    public LoginAdmissionStats getLoginAdmissionStats(String authToken) {
+        try {
+            apiTokenGen.checkToken(authToken);
+            return service.getLoginAdmission().stats();
+        } catch (InvalidAccessTokenException ex) {
+            System.out.println(ex.getMessage());
+            ex.printStackTrace();
+            return null;
+        }
+    }
+    
+    /**
+     * Checks authToken for validity as RootUser, then has passwords hashed by 
+     * hasher from now on, for every service. Existing hashes stay valid and are 
+     * replaced with hasher's hashes as their Users log in
+     * @param authToken a valid rootUser authToken
+     * @param hasher the PasswordHasher to hash passwords with
+     */
+    public static void setPasswordHasher(String authToken, PasswordHasher hasher) {
+        try {
+            apiTokenGen.checkToken(authToken);
+            passwords.setHasher(hasher);
+        } catch (InvalidAccessTokenException ex) {
+            System.out.println(ex.getMessage());
+            ex.printStackTrace();
+        }
+    }
+    
+    /**
+     * Opens the write-ahead journal at path and replays every mutation in it, then
+     * journals every mutation from now on: root users, instances, and the users, 
+     * roles and permissions of every service. Must be called once, at startup, 
+     * before any root user is created. authTokens are not journaled, so after a 
+     * restart everybody logs in again, and neither are signing keys, decision cache
+     * sizes or login rate limits. A mutation only returns once its record is on 
+     * disk; concurrent mutations share one fsync
+     * @param path the journal file, created if it does not exist
+     * @return the number of mutations replayed
+     * @throws IOException if the journal can not be read or created
+     * @throws IllegalStateException if a journal is already open or root users exist
+     */
+    public static int openJournal(Path path) throws IOException {
+        return openJournal(path, null);
+    }
+    
+    /**
+     * Like openJournal(Path), loading the snapshot at snapshot first, if there is
+     * one, and replaying only the part of the journal written since. checkpoint(String)
+     * then writes new snapshots there
+     * @param path the journal file, created if it does not exist
+     * @param snapshot the snapshot file, or null to only use the journal
+     * @return the number of snapshot entries loaded and mutations replayed
+     * @throws IOException if the snapshot or journal can not be read, or the 
+     * journal created
+     * @throws IllegalStateException if a journal is already open or root users exist
+     */
+    public static int openJournal(Path path, Path snapshot) throws IOException {
+        if (journal != null || !rootUsersPWtable.isEmpty()) {
+            throw new IllegalStateException("The journal must be opened once, before any root user is created");
+        }
+        long epoch = 0;
+        int[] replayed = new int[1];
+        if (snapshot != null && Files.exists(snapshot)) {
+            SnapshotLoader loader = new SnapshotLoader();
+            epoch = Snapshot.read(snapshot, loader);
+            loader.endService();
+            replayed[0] = loader.entries;
+        }
+        journal = Journal.open(path, epoch, record -> {
+            try {
+                replay(record);
+                replayed[0]++;
+            } catch (Exception ex) {
+                System.out.println("Skipping journal record "+record.getOp()+": "+ex.getMessage());
+            }
+        });
+        snapshotPath = snapshot;
+        return replayed[0];
+    }
+    
+    /**
+     * Checks authToken for validity as RootUser, then writes a snapshot of every 
+     * root user, instance and service, with its Permissions, Roles, Role 
+     * Entitlements and Users, and empties the journal, whose records the snapshot
+     * now holds. Mutations wait while the snapshot is written; logins and access
+     * checks do not
+     * @param authToken a valid rootUser authToken
+     * @return true if the snapshot was written, false if it could not be, or the 
+     * journal was not opened with a snapshot file
+     */
+    public static boolean checkpoint(String authToken) {
+        try {
+            apiTokenGen.checkToken(authToken);
+            return checkpoint();
+        } catch (InvalidAccessTokenException | IOException ex) {
+            System.out.println(ex.getMessage());
+            ex.printStackTrace();
+            return false;
+        }
+    }
+    
+    /**
+     * Checks authToken for validity as RootUser, then writes a snapshot, as 
+     * checkpoint(String) does, every period from now on, replacing any earlier 
+     * schedule
+     * @param authToken a valid rootUser authToken
+     * @param period the time between snapshots
+     * @param unit the unit of period
+     */
+    public static void scheduleCheckpoints(String authToken, long period, TimeUnit unit) {
+        try {
+            apiTokenGen.checkToken(authToken);
+            ScheduledExecutorService next = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "authentication-checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            });
+            next.scheduleWithFixedDelay(() -> {
+                try {
+                    checkpoint();
+                } catch (IOException | RuntimeException ex) {
+                    System.out.println(ex.getMessage());
+                    ex.printStackTrace();
+                }
+            }, period, period, unit);
+            ScheduledExecutorService previous = checkpoints.getAndSet(next);
+            if (previous != null) {
+                previous.shutdown();
+            }
+        } catch (InvalidAccessTokenException | IllegalArgumentException ex) {
+            System.out.println(ex.getMessage());
+            ex.printStackTrace();
+        }
+    }
+    
+    /**
+     * Keeps the live UUID authTokens of root users and of every service, existing
+     * and created from now on, in memory-mapped files in directory, so sessions 
+     * survive a restart of the process: after openJournal, calling openTokenStores
+     * with the same directory lets everybody carry on without logging in again. 
+     * Tokens are not read back up front; each is found in its file the first time 
+     * it is presented. A service's file is deleted with the service
+     * @param directory the directory of the token files, created if needed
+     * @param capacity the number of tokens a new file has room for before it grows
+     * @throws IOException if the directory or a token file can not be opened
+     */
+    public static void openTokenStores(Path directory, int capacity) throws IOException {
+        Files.createDirectories(directory);
+        TokenStore rootStore = TokenStore.open(directory.resolve("root.tokens"), capacity);
+        TokenStore previous = apiTokenGen.setTokenStore(rootStore, rootUsersPWtable::get);
+        if (previous != null) {
+            previous.close();
+        }
+        tokenStoreCapacity = capacity;
+        tokenStoreDirectory = directory;
+        for (Map.Entry<String, Registration> entry: services.entrySet()) {
+            attachTokenStore(entry.getKey(), entry.getValue().service);
+        }
+    }
+    
+    /**
+     * keeps the tokens of service, registered under name, in its file in the token 
+     * store directory, if there is one
+     */
+    private static void attachTokenStore(String name, Service service) {
+        Path directory = tokenStoreDirectory;
+        if (directory == null) {
+            return;
+        }
+        try {
+            TokenStore store = TokenStore.open(directory.resolve(tokenStoreFileName(name)), tokenStoreCapacity);
+            TokenStore previous = service.getAuthTokenGenerator().setTokenStore(store, service::getUser);
+            if (previous != null) {
+                previous.close();
+            }
+        } catch (IOException ex) {
+            System.out.println(ex.getMessage());
+            ex.printStackTrace();
+        }
+    }
+    
+    private static void deleteTokenStore(Service service) {
+        TokenStore store = service.getAuthTokenGenerator().setTokenStore(null, null);
+        if (store != null) {
+            try {
+                store.delete();
+            } catch (IOException ex) {
+                System.out.println(ex.getMessage());
+                ex.printStackTrace();
+            }
+        }
+    }
+    
+    /**
+     * @return the name of the token file of the service registered under name, a 
+     * digest of the name, since service names may hold any character
+     */
+    private static String tokenStoreFileName(String name) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(name.getBytes(StandardCharsets.UTF_8));
+            StringBuilder file = new StringBuilder("service-");
+            for (int i = 0; i < 16; i++) {
+                file.append(Character.forDigit(digest[i] >> 4 & 0xF, 16)).append(Character.forDigit(digest[i] & 0xF, 16));
+            }
+            return file.append(".tokens").toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    /**
+     * writes a snapshot and resets the journal to its epoch, holding the checkpoint
+     * lock exclusively so the snapshot and the reset journal agree
+     * @return false if there is no journal or snapshot file
+     */
+    private static boolean checkpoint() throws IOException {
+        checkpointLock.writeLock().lock();
+        try {
+            Journal current = journal;
+            Path path = snapshotPath;
+            if (current == null || path == null) {
+                return false;
+            }
+            long epoch = current.getEpoch() + 1;
+            try (Snapshot.Writer writer = new Snapshot.Writer(path, epoch)) {
+                writeSnapshot(writer);
+                writer.commit();
+            }
+            current.reset(epoch);
+            return true;
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * writes the entries of the whole model: root users, then for each service 
+     * its instances, Permissions, Roles, Role Entitlements and Users, in the order
+     * SnapshotLoader needs them
+     */
+    private static void writeSnapshot(Snapshot.Writer writer) throws IOException {
+        for (User root: rootUsersPWtable.values()) {
+            writer.add(Snapshot.ROOT_USER, root.getUserName(), root.getPassword());
+        }
+        Map<String, List<String>> roots = new HashMap<>();
+        for (Map.Entry<User, ConcurrentHashMap<String, AuthenticationAPI>> entry: rootUserAss.entrySet()) {
+            for (String name: entry.getValue().keySet()) {
+                roots.computeIfAbsent(name, key -> new ArrayList<>()).add(entry.getKey().getUserName());
+            }
+        }
+        for (Map.Entry<String, Registration> entry: services.entrySet()) {
+            Service service = entry.getValue().service;
+            writer.add(Snapshot.SERVICE, service.getName(), service.getDescription(), 
+                    Long.toString(service.getAuthTokenGenerator().getTimeToLive()));
+            for (String root: roots.getOrDefault(entry.getKey(), Collections.<String>emptyList())) {
+                writer.add(Snapshot.INSTANCE, root);
+            }
+            for (Permission permission: service.getPermissions()) {
+                writer.add(Snapshot.PERMISSION, permission.getName(), permission.getDescription());
+            }
+            List<Role> roles = service.getRoles();
+            for (Role role: roles) {
+                writer.add(Snapshot.ROLE, role.getName(), role.getDescription());
+            }
+            for (Role role: roles) {
+                List<Entitlement> entitlements = new ArrayList<>(role.getEntitlements());
+                if (!entitlements.isEmpty()) {
+                    writer.add(Snapshot.ROLE_ENTITLEMENTS, journalFields(entitlements, role.getName()));
+                }
+            }
+            for (User user: service.getUserMap().values()) {
+                List<String> fields = new ArrayList<>(2 + user.roles.size());
+                fields.add(user.getUserName());
+                fields.add(user.getPassword());
+                for (Role role: user.roles.values()) {
+                    fields.add(role.getName());
+                }
+                writer.add(Snapshot.USER, fields.toArray(new String[fields.size()]));
+            }
+        }
+    }
+    
+    /**
+     * rebuilds the model from the entries of a snapshot. Users are collected per 
+     * service and added with a single PolicySnapshot each
+     */
+    private static final class SnapshotLoader implements Consumer<JournalRecord> {
+        private String name;
+        private String description;
+        private long timeToLive;
+        private Service service;
+        private List<User> users = new ArrayList<>();
+        private int entries;
+
+        @Override
+        public void accept(JournalRecord entry) {
+            entries++;
+            switch (entry.getOp()) {
+                case Snapshot.ROOT_USER:
+                    rootUsersPWtable.putIfAbsent(entry.field(0), User.newUser(entry.field(0), entry.field(1)));
+                    break;
+                case Snapshot.SERVICE:
+                    endService();
+                    name = entry.field(0);
+                    description = entry.field(1);
+                    timeToLive = Long.parseLong(entry.field(2));
+                    break;
+                case Snapshot.INSTANCE:
+                    service = newInstance(rootUsersPWtable.get(entry.field(0)), name, description).service;
+                    service.getAuthTokenGenerator().setTimeToLive(timeToLive);
+                    break;
+                case Snapshot.PERMISSION:
+                    Permission.newPermission(service, entry.field(0), entry.field(1));
+                    break;
+                case Snapshot.ROLE:
+                    Role.newRole(service, entry.field(0), entry.field(1));
+                    break;
+                case Snapshot.ROLE_ENTITLEMENTS:
+                    List<Entitlement> entitlements = journaledEntitlements(service, entry, 1);
+                    entitlements.removeIf(entitlement -> entitlement == null);
+                    roleOf(entry.field(0)).addPermission(entitlements);
+                    break;
+                case Snapshot.USER:
+                    List<Role> roles = new ArrayList<>(entry.size() - 2);
+                    for (int i = 2; i < entry.size(); i++) {
+                        Role role = roleOf(entry.field(i));
+                        if (role != null) {
+                            roles.add(role);
+                        }
+                    }
+                    users.add(User.restore(service, entry.field(0), entry.field(1), roles));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown snapshot entry "+entry.getOp());
+            }
+        }
+
+        private Role roleOf(String roleName) {
+            return service.getRole(roleName.trim().toLowerCase());
+        }
+
+        /**
+         * adds the Users collected for the current service
+         */
+        void endService() {
+            if (service != null && !users.isEmpty()) {
+                service.addUsers(users);
+            }
+            users = new ArrayList<>();
+            service = null;
+        }
+    }
+    
+    /**
+     * applies a journaled mutation again, without journaling it
+     */
+    private static void replay(JournalRecord record) throws Exception {
+        switch (record.getOp()) {
+            case JournalRecord.NEW_ROOT_USER:
+                rootUsersPWtable.putIfAbsent(record.field(0), User.newUser(record.field(0), record.field(1)));
+                return;
+            case JournalRecord.NEW_INSTANCE:
+                newInstance(rootUsersPWtable.get(record.field(0)), record.field(1), record.field(2));
+                return;
+            case JournalRecord.DELETE_INSTANCE:
+                deleteInstance(rootUsersPWtable.get(record.field(0)), record.field(1));
+                return;
+            default:
+        }
+        Registration registration = services.get(Service.normalizeName(record.field(0)));
+        if (registration == null) {
+            throw new IllegalArgumentException("No service "+record.field(0));
+        }
+        Service service = registration.service;
+        switch (record.getOp()) {
+            case JournalRecord.ADD_USER:
+                User.newUser(service, record.field(1), record.field(2));
+                break;
+            case JournalRecord.REMOVE_USER:
+                service.removeUser(record.field(1));
+                break;
+            case JournalRecord.UPDATE_USER_LOGIN:
+                updateUserLogin(service.getUser(record.field(1)), record.field(2), record.field(3));
+                break;
+            case JournalRecord.REHASH_PASSWORD:
+                service.getUser(record.field(1)).replacePassword(record.field(2), record.field(3));
+                break;
+            case JournalRecord.ASSIGN_ROLE:
+                service.getUser(record.field(1)).addRole(service.getRole(record.field(2)));
+                break;
+            case JournalRecord.REMOVE_ROLE:
+                service.getUser(record.field(1)).removeRole(record.field(2));
+                break;
+            case JournalRecord.ADD_ROLE:
+                addRole(service, record.field(1), record.field(2), journaledEntitlements(service, record, 3));
+                break;
+            case JournalRecord.DELETE_ROLE:
+                service.deleteRole(record.field(1));
+                break;
+            case JournalRecord.UPDATE_ROLE:
+                updateRole(service.getRole(record.field(1)), record.field(2), record.field(3), 
+                        journaledEntitlements(service, record, 4));
+                break;
+            case JournalRecord.ADD_PERMISSION_TO_ROLE:
+                addPermissionToRole(service, record.field(1), record.field(2));
+                break;
+            case JournalRecord.NEW_PERMISSION:
+                Permission.newPermission(service, record.field(1), record.field(2));
+                break;
+            case JournalRecord.REMOVE_ENTITLEMENT:
+                service.getRole(record.field(1)).removePermission(record.field(2));
+                break;
+            case JournalRecord.UPDATE_PERMISSION:
+                updatePermission(service.getPermission(record.field(1)), record.field(2), record.field(3));
+                break;
+            case JournalRecord.DELETE_PERMISSION:
+                service.removePermission(record.field(1));
+                break;
+            case JournalRecord.SET_TOKEN_TTL:
+                service.getAuthTokenGenerator().setTimeToLive(Long.parseLong(record.field(1)));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown journal op");
+        }
+    }
+    
+    /**
+     * applies mutation, publishes it to the service's change feed and, if there is
+     * a journal, journals it, all under the service's write lock, so the service's
+     * events and records are in the order its mutations were applied. Then waits
+     * for the record to be on disk. Failed mutations are neither published nor 
+     * journaled
+     */
+    private <T, E extends Exception> T journaled(Journal.Mutation<T, E> mutation, byte op, String... fields) throws E {
+        T result;
+        long seq;
+        Lock checkpoint = beginMutation();
+        ReentrantLock lock = service.getWriteLock();
+        lock.lock();
+        try {
+            result = mutation.apply();
+            service.getChangeFeed().publish(op, fields);
+            seq = appendJournal(op, serviceFields(fields));
+        } finally {
+            lock.unlock();
+            endMutation(checkpoint);
+        }
+        awaitJournal(seq);
+        return result;
+    }
+    
+    /**
+     * takes the checkpoint lock shared, so no checkpoint runs between a mutation 
+     * and its journal record, if mutations are journaled
+     * @return the lock to pass to endMutation(Lock), or null
+     */
+    private static Lock beginMutation() {
+        if (journal == null) {
+            return null;
+        }
+        Lock lock = checkpointLock.readLock();
+        lock.lock();
+        return lock;
+    }
+    
+    private static void endMutation(Lock lock) {
+        if (lock != null) {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * journaled(Mutation, byte, String...) for mutations without a result
+     */
+    private <E extends Exception> void journaled(Journal.Action<E> action, byte op, String... fields) throws E {
+        journaled(() -> {
+            action.run();
+            return null;
+        }, op, fields);
+    }
+    
+    private String[] serviceFields(String[] fields) {
+        String[] record = new String[fields.length + 1];
+        record[0] = service.getName();
+        System.arraycopy(fields, 0, record, 1, fields.length);
+        return record;
+    }
+    
+    /**
+     * @return the sequence number of the record appended, or 0 if there is no journal
+     */
+    private static long appendJournal(byte op, String... fields) {
+        Journal current = journal;
+        return current == null ? 0 : current.append(new JournalRecord(op, fields));
+    }
+    
+    private static void awaitJournal(long seq) {
+        Journal current = journal;
+        if (current != null && seq > 0) {
+            current.await(seq);
+        }
+    }
+    
+    /**
+     * @return names, followed by each of permissions as its kind, P or R, and name
+     */
+    private static String[] journalFields(List<Entitlement> permissions, String... names) {
+        String[] fields = new String[names.length + permissions.size()];
+        System.arraycopy(names, 0, fields, 0, names.length);
+        int i = names.length;
+        for (Entitlement permission: permissions) {
+            fields[i++] = (permission instanceof Role ? "R" : "P") + permission.getName();
+        }
+        return fields;
+    }
+    
+    private static List<Entitlement> journaledEntitlements(Service service, JournalRecord record, int from) {
+        List<Entitlement> permissions = new ArrayList<>(record.size() - from);
+        for (int i = from; i < record.size(); i++) {
+            String field = record.field(i);
+            String name = field.substring(1);
+            permissions.add(field.charAt(0) == 'R' ? service.getRole(name.trim().toLowerCase()) : service.getPermission(name));
+        }
+        return permissions;
+    }
+    
+    private static Role addRole(Service service, String roleName, String description, List<Entitlement> permissions) {
+        Role newRole = Role.newRole(service, roleName, description);
+        newRole.addPermission(permissions);
+        return newRole;
+    }
+    
+    private static Role updateRole(Role role, String newroleName, String description, List<Entitlement> permissions) {
+        role.replacePermissions(permissions);
+        role.setDescription(description);
+        role.setName(newroleName);
+        return role;
+    }
+    
+    private static Role addPermissionToRole(Service service, String roleName, String permissionName) {
+        Role role = service.getRole(roleName);
+        Entitlement permission = service.getPermission(permissionName);
+        if (permission == null) {
+            permission = service.getRole(permissionName);
+        }
+        role.addPermission(permission);
+        return role;
+    }
+    
+    private static Permission updatePermission(Permission permission, String newPerName, String description) {
+        permission.setDescription(description);
+        permission.setName(newPerName);
+        return permission;
+    }
+    
+    /**
+     * logs out authToken, whose root token has already been checked
+     */
+    void logoutUser(String authToken) throws InvalidAccessTokenException {
+        service.getAuthTokenGenerator().removeToken(authToken);
+    }
+    
+    /**
+     * Checks authToken for validity as RootUser, returns a subscription to the 
+     * service's changes from now on. To mirror the service, subscribe first, then
+     * load the full inventory, then apply the events polled from the subscription
+     * @param authToken a valid rootUser authToken
+     * @return a subscription to the changes made after it was taken
+     */
+    public ChangeSubscription subscribeChanges(String authToken) {
+        try {
+            apiTokenGen.checkToken(authToken);
+            ChangeFeed feed = service.getChangeFeed();
+            return feed.subscribe(feed.getSequence());
+        } catch (InvalidAccessTokenException ex) {
+            System.out.println(ex.getMessage());
+            ex.printStackTrace();
+            return null;
+        }
+    }
+    
+    /**
+     * Checks authToken for validity as RootUser, returns a subscription to the 
+     * service's changes after the event numbered afterSequence, such as the last 
+     * one an earlier subscription read. Sequence numbers start again at 1 when the
+     * process restarts, so sequences from before a restart must not be passed: 
+     * subscribers resync instead
+     * @param authToken a valid rootUser authToken
+     * @param afterSequence the sequence number of the last event already applied
+     * @return a subscription to the changes made after that event
+     */
+    public ChangeSubscription subscribeChanges(String authToken, long afterSequence) {
+        try {
+            apiTokenGen.checkToken(authToken);
+            return service.getChangeFeed().subscribe(afterSequence);
+        } catch (InvalidAccessTokenException ex) {
+            System.out.println(ex.getMessage());
+            ex.printStackTrace();
+            return null;
+        }
+    }
+    
+    /**
+     * Checks rootAuthToken for validity as RootUser once and returns a RootSession
+     * bound to it and to this instance. The RootSession's methods do not check the
+     * root token again until it is due to expire
+     * @param rootAuthToken a valid rootUser authToken
+     * @return the RootSession
+     * @throws InvalidAccessTokenException if the root access token is not a valid 
+     * token or expired
+     */
+    public RootSession bindRootSession(String rootAuthToken) throws InvalidAccessTokenException {
+        apiTokenGen.checkToken(rootAuthToken);
+        return new RootSession(this, rootAuthToken);
+    }
+    
+    /**
+     * Checks rootAuthToken for validity as RootUser, again, and returns the time it
+     * expires at
+     * @param rootAuthToken a rootUser authToken
+     * @return the time the token expires at, in epoch milliseconds
+     * @throws InvalidAccessTokenException if the root access token is not a valid 
+     * token or expired
+     */
+    static long checkRootExpiry(String rootAuthToken) throws InvalidAccessTokenException {
+        apiTokenGen.checkToken(rootAuthToken);
+        return apiTokenGen.getExpiry(rootAuthToken);
+    }
+    
+    /**
+     * @return the current time, in epoch milliseconds, of the clock rootUser
+     * authTokens expire by
+     */
+    static long rootClockMillis() {
+        return apiTokenGen.getClock().millis();
+    }
+    
+    /**
+     * a test method to check if the token passed to the method is
+     * a valid token or not
+     * @param authToken the user's token to be checked
+     * @return ture if the token is valid, false if the token is a valid token or expired
+     */
+    
+    public boolean checkUserToken(String authToken) {
+        return service.getAuthTokenGenerator().isValid(authToken);
+    }
+    
+    /**
+     * Checks authToken for validity as RootUser,  retruns String representation 
+     * of all Users of service and their Roles, all Roles (w/description) of 
+     * service and their Permissions and all Permissions (w/description) of service
+     * @param authToken a valid rootUser authToken
+     * @return a String representation of the service's Inventory (Users, Roles and Permissions)
+     */
+    
+    public String getInventory(String authToken) {
+        try {
+            apiTokenGen.checkToken(authToken);
+            InventoryVisitor visitor = new InventoryVisitor();
+            return visitor.getInventory(service);
+        } catch (InvalidAccessTokenException ex) {
+            System.out.println(ex.getMessage());
+            ex.printStackTrace();
+            return null;
+        }
+    }
+    
+    /**
+     * Checks authToken for validity as RootUser, then writes the Inventory of 
+     * getInventory(String) to out as it is gathered, so it is never held in memory
+     * @param authToken a valid rootUser authToken
+     * @param out where to write the Inventory, such as a Writer or StringBuilder
+     * @throws IOException if out fails
+     */
+    public void writeInventory(String authToken, Appendable out) throws IOException {
+        try {
+            apiTokenGen.checkToken(authToken);
+            new InventoryVisitor(out).writeInventory(service);
+        } catch (InvalidAccessTokenException ex) {
+            System.out.println(ex.getMessage());
+            ex.printStackTrace();
+        }
+    }
+    
+    /**
+     * Like writeInventory(String, Appendable), writing the Inventory to out in 
+     * UTF-8 through a buffer, which is flushed but not closed
+     * @param authToken a valid rootUser authToken
+     * @param out where to write the Inventory
+     * @throws IOException if out fails
+     */
+    public void writeInventory(String authToken, OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writeInventory(authToken, writer);
+        writer.flush();
+    }
+    
+    /**
+     * Checks authToken for validity as RootUser, then writes the Inventory of the 
+     * service to out in a machine-readable format: the service, its Users, Roles 
+     * and Permissions, each as one record, then a record with their counts. Users 
+     * are exported in parallel sections, written in a fixed order
+     * @param authToken a valid rootUser authToken
+     * @param format JSON_LINES or BINARY
+     * @param out where to write the export, flushed but not closed
+     * @throws IOException if out fails
+     */
+    public void exportInventory(String authToken, ExportFormat format, OutputStream out) throws IOException {
+        try {
+            apiTokenGen.checkToken(authToken);
+            InventoryExport.write(service, format, out);
+        } catch (InvalidAccessTokenException ex) {
+            System.out.println(ex.getMessage());
+            ex.printStackTrace();
+        }
     }
 }
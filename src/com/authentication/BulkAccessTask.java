@@ -0,0 +1,72 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * BulkAccessTask decides one Permission for a range of user authTokens, setting
+ * bit i of a shared word array for each token i which is allowed. Ranges longer
+ * than LEAF_SIZE are split in half and decided in parallel by the fork/join pool.
+ * Split points are kept on multiples of 64, so no two tasks ever write the same
+ * word and the array needs no synchronization.
+ * @author willpassidomo
+ */
+class BulkAccessTask extends RecursiveAction {
+    static final int LEAF_SIZE = 512;
+
+    private final AuthTokenGenerator tokenGen;
+    private final PolicySnapshot policy;
+    private final int permissionId;
+    private final List<String> authTokens;
+    private final long[] words;
+    private final int from;
+    private final int to;
+
+    /**
+     * @param tokenGen the AuthTokenGenerator of the service the tokens belong to
+     * @param policy the PolicySnapshot every token is decided against
+     * @param permissionId the id of the Permission in policy
+     * @param authTokens the tokens, which must support fast random access
+     * @param words the bitset the results are written to, one bit per token
+     * @param from the index of the first token to decide
+     * @param to one past the index of the last token to decide
+     */
+    BulkAccessTask(AuthTokenGenerator tokenGen, PolicySnapshot policy, int permissionId,
+            List<String> authTokens, long[] words, int from, int to) {
+        this.tokenGen = tokenGen;
+        this.policy = policy;
+        this.permissionId = permissionId;
+        this.authTokens = authTokens;
+        this.words = words;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from <= LEAF_SIZE) {
+            decideRange();
+            return;
+        }
+        int middle = ((from + to) >>> 1) & ~63;
+        invokeAll(new BulkAccessTask(tokenGen, policy, permissionId, authTokens, words, from, middle),
+                new BulkAccessTask(tokenGen, policy, permissionId, authTokens, words, middle, to));
+    }
+
+    /**
+     * decides every token of the range on the calling thread
+     */
+    void decideRange() {
+        for (int i = from; i < to; i++) {
+            if (tokenGen.decide(authTokens.get(i), policy, permissionId) == AccessDecision.ALLOW) {
+                words[i >>> 6] |= 1L << i;
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A ChangeEvent is one mutation of a service, as read from its change feed
+ * through a ChangeSubscription: its sequence number, its ChangeType, the 
+ * arguments the mutation was made with and when it was made. Events are 
+ * immutable.
+ * @author willpassidomo
+ */
+public final class ChangeEvent {
+    private final long sequence;
+    private final ChangeType type;
+    private final List<String> fields;
+    private final long timestamp;
+
+    ChangeEvent(long sequence, ChangeType type, String[] fields, long timestamp) {
+        this.sequence = sequence;
+        this.type = type;
+        this.fields = Collections.unmodifiableList(Arrays.asList(fields));
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @return the sequence number of the event, one more than that of the event 
+     * before it in the service's feed
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the kind of mutation
+     */
+    public ChangeType getType() {
+        return type;
+    }
+
+    /**
+     * @return the arguments of the mutation, as listed by its ChangeType
+     */
+    public List<String> getFields() {
+        return fields;
+    }
+
+    /**
+     * @return the time the mutation was made, in epoch milliseconds
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return sequence+" "+type+" "+fields;
+    }
+}
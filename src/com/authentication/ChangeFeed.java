@@ -0,0 +1,101 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * ChangeFeed is the bounded, lock-free ring buffer of the ChangeEvents of a 
+ * service. A writer claims the next sequence number with a single atomic 
+ * increment and stores its event in the slot of that number, overwriting the 
+ * event CAPACITY before it; it never waits for readers. Events carry their own 
+ * sequence number, so a reader looking at a slot can tell whether it holds the
+ * event it wants, one not yet stored, or a later one that overwrote it, in which
+ * case the reader has fallen behind and must resync.
+ * @author willpassidomo
+ */
+class ChangeFeed {
+    static final int CAPACITY = 1 << 14;
+
+    private final AtomicReferenceArray<ChangeEvent> ring = new AtomicReferenceArray<>(CAPACITY);
+    private final AtomicLong next = new AtomicLong(1);
+
+    /**
+     * Records a mutation of the service, unless op is not one
+     * @param op the JournalRecord op code of the mutation
+     * @param fields the fields of its journal record, without the service name
+     */
+    void publish(byte op, String[] fields) {
+        ChangeType type = ChangeType.of(op);
+        if (type == null) {
+            return;
+        }
+        int kept = type.getPublicFields();
+        if (kept >= 0 && kept < fields.length) {
+            String[] visible = new String[kept];
+            System.arraycopy(fields, 0, visible, 0, kept);
+            fields = visible;
+        }
+        long sequence = next.getAndIncrement();
+        ring.lazySet(index(sequence), new ChangeEvent(sequence, type, fields, System.currentTimeMillis()));
+    }
+
+    /**
+     * @return the sequence number of the last event published, 0 if there is none.
+     * Its mutation, and every earlier one, has already been made
+     */
+    long getSequence() {
+        return next.get() - 1;
+    }
+
+    /**
+     * Reads the events from sequence from on, in order, stopping at the first one
+     * not yet stored
+     * @param from the sequence number of the first event to read
+     * @param max the most events to read
+     * @param events the list to add the events to
+     * @return the sequence number of the next event to read
+     * @throws ChangeFeedLagException if the event numbered from is overwritten, or
+     * from is beyond the next event the feed will publish
+     */
+    long read(long from, int max, List<ChangeEvent> events) throws ChangeFeedLagException {
+        long end = next.get();
+        if (from > end) {
+            throw new ChangeFeedLagException(from);
+        }
+        long sequence = from;
+        while (sequence < end && sequence - from < max) {
+            ChangeEvent event = ring.get(index(sequence));
+            if (event == null || event.getSequence() < sequence) {
+                break;
+            }
+            if (event.getSequence() > sequence) {
+                throw new ChangeFeedLagException(sequence);
+            }
+            events.add(event);
+            sequence++;
+        }
+        if (end - sequence > CAPACITY) {
+            throw new ChangeFeedLagException(sequence);
+        }
+        return sequence;
+    }
+
+    /**
+     * @param after the sequence number of the last event already seen
+     * @return a subscription to the events after it
+     */
+    ChangeSubscription subscribe(long after) {
+        return new ChangeSubscription(this, after + 1);
+    }
+
+    private static int index(long sequence) {
+        return (int) sequence & (CAPACITY - 1);
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+/**
+ * ChangeFeedLagException is thrown by ChangeSubscription.poll(int) when the 
+ * subscription fell so far behind that the events it has yet to read were 
+ * overwritten in the feed, or when it asked to start after a sequence number
+ * the feed never reached, as after a restart. Either way changes have been 
+ * missed, and the subscriber must resync: subscribe again from now, then reload
+ * the inventory in full.
+ * @author willpassidomo
+ */
+public class ChangeFeedLagException extends Exception {
+    private final long sequence;
+
+    /**
+     * @param sequence the sequence number of the first event the subscription 
+     * could not read
+     */
+    public ChangeFeedLagException(long sequence) {
+        super("Change feed events from sequence "+sequence+" are no longer available, resync required");
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return the sequence number of the first event the subscription could not read
+     */
+    public long getSequence() {
+        return sequence;
+    }
+}
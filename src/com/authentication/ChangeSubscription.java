@@ -0,0 +1,61 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A ChangeSubscription reads the change feed of a service from a sequence number
+ * on, returned by AuthenticationAPI.subscribeChanges once the root token has been
+ * checked. Reading never blocks the service's writers: a subscriber that falls 
+ * too far behind is told so by ChangeFeedLagException instead, and must resync.
+ * A subscription is meant for one reader thread.
+ * @author willpassidomo
+ */
+public final class ChangeSubscription {
+    private final ChangeFeed feed;
+    private long next;
+
+    ChangeSubscription(ChangeFeed feed, long next) {
+        this.feed = feed;
+        this.next = next;
+    }
+
+    /**
+     * Returns the events published since the last poll, oldest first, or an empty
+     * list if there are none yet
+     * @param max the most events to return
+     * @return the next events of the feed
+     * @throws ChangeFeedLagException if events the subscription has not read were
+     * overwritten; the subscription stays lagged and must be replaced
+     */
+    public List<ChangeEvent> poll(int max) throws ChangeFeedLagException {
+        if (max < 1) {
+            throw new IllegalArgumentException("Poll limit must be positive: "+max);
+        }
+        List<ChangeEvent> events = new ArrayList<>(Math.min(max, 256));
+        next = feed.read(next, max, events);
+        return events.isEmpty() ? Collections.<ChangeEvent>emptyList() : events;
+    }
+
+    /**
+     * @return the sequence number of the last event read, to subscribe from again
+     * later
+     */
+    public long getSequence() {
+        return next - 1;
+    }
+
+    /**
+     * @return the number of events published and not yet read
+     */
+    public long getLag() {
+        return Math.max(0, feed.getSequence() - getSequence());
+    }
+}
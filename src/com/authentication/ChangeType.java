@@ -0,0 +1,76 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+/**
+ * ChangeType is the kind of mutation a ChangeEvent records. Each type lists the
+ * fields of its events, in order. Entitlements of a Role are given as their kind,
+ * P for a Permission or R for a Role, followed by their name. Password hashes are
+ * never part of an event.
+ * @author willpassidomo
+ */
+public enum ChangeType {
+    /** userName */
+    USER_ADDED(JournalRecord.ADD_USER, 1),
+    /** userName */
+    USER_REMOVED(JournalRecord.REMOVE_USER, -1),
+    /** userName, newUserName; the password may have changed too */
+    USER_LOGIN_UPDATED(JournalRecord.UPDATE_USER_LOGIN, 2),
+    /** userName, roleName */
+    ROLE_ASSIGNED(JournalRecord.ASSIGN_ROLE, -1),
+    /** userName, roleName */
+    ROLE_UNASSIGNED(JournalRecord.REMOVE_ROLE, -1),
+    /** roleName, description, then each entitlement */
+    ROLE_ADDED(JournalRecord.ADD_ROLE, -1),
+    /** roleName */
+    ROLE_DELETED(JournalRecord.DELETE_ROLE, -1),
+    /** roleName, newRoleName, description, then each entitlement */
+    ROLE_UPDATED(JournalRecord.UPDATE_ROLE, -1),
+    /** roleName, permissionName */
+    PERMISSION_ADDED_TO_ROLE(JournalRecord.ADD_PERMISSION_TO_ROLE, -1),
+    /** permissionName, description */
+    PERMISSION_ADDED(JournalRecord.NEW_PERMISSION, -1),
+    /** roleName, entitlementName */
+    ENTITLEMENT_REMOVED(JournalRecord.REMOVE_ENTITLEMENT, -1),
+    /** permissionName, newPermissionName, description */
+    PERMISSION_UPDATED(JournalRecord.UPDATE_PERMISSION, -1),
+    /** permissionName */
+    PERMISSION_DELETED(JournalRecord.DELETE_PERMISSION, -1),
+    /** the token time to live, in milliseconds */
+    TOKEN_TIME_TO_LIVE_SET(JournalRecord.SET_TOKEN_TTL, -1);
+
+    private static final ChangeType[] byOp = new ChangeType[JournalRecord.SET_TOKEN_TTL + 1];
+    static {
+        for (ChangeType type: values()) {
+            byOp[type.op] = type;
+        }
+    }
+
+    private final byte op;
+    private final int publicFields;
+
+    private ChangeType(byte op, int publicFields) {
+        this.op = op;
+        this.publicFields = publicFields;
+    }
+
+    /**
+     * @param op the JournalRecord op code of a mutation of a service
+     * @return the type of the mutation, or null if op is not one
+     */
+    static ChangeType of(byte op) {
+        return op >= 0 && op < byOp.length ? byOp[op] : null;
+    }
+
+    /**
+     * @return the number of leading journal fields events of this type keep, 
+     * leaving out the hashed password, or -1 to keep all
+     */
+    int getPublicFields() {
+        return publicFields;
+    }
+}
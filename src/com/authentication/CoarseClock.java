@@ -0,0 +1,75 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CoarseClock is a Clock whose time is read from a volatile field which a 
+ * daemon ticker thread refreshes every resolution milliseconds. Reading it is a 
+ * single volatile load, so it may be given to AuthTokenGenerator.setClock(Clock) 
+ * to take System.currentTimeMillis() off the token validation path. Tokens may 
+ * then be accepted for up to resolution milliseconds after they expire.
+ * @author willpassidomo
+ */
+public class CoarseClock extends Clock implements AutoCloseable {
+    private final ScheduledExecutorService ticker;
+    private volatile long now = System.currentTimeMillis();
+
+    /**
+     * Creates a new CoarseClock and starts its ticker thread
+     * @param resolutionMillis how often, in milliseconds, the time is refreshed
+     */
+    public CoarseClock(long resolutionMillis) {
+        ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "CoarseClock-ticker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(() -> now = System.currentTimeMillis(), 
+                resolutionMillis, resolutionMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public long millis() {
+        return now;
+    }
+
+    @Override
+    public Instant instant() {
+        return Instant.ofEpochMilli(now);
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return ZoneOffset.UTC;
+    }
+
+    /**
+     * CoarseClock is always UTC, the zone is ignored
+     * @param zone the zone
+     * @return this clock
+     */
+    @Override
+    public Clock withZone(ZoneId zone) {
+        return this;
+    }
+
+    /**
+     * Stops the ticker thread, after which the clock no longer moves
+     */
+    @Override
+    public void close() {
+        ticker.shutdownNow();
+    }
+}
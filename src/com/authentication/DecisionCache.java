@@ -0,0 +1,170 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * DecisionCache remembers recent ALLOW and DENY decisions of a Service by
+ * (authToken, permission). Every entry is stamped with the Service's generation,
+ * which the Service bumps on every change to its policy and every logout, so an
+ * entry made before such a change is never returned after it. An entry also
+ * remembers when its token expires and is not returned after that.
+ * The cache is bounded: it is split into segments by key hash, each a
+ * LinkedHashMap in access order guarded by its own lock, which evicts its least
+ * recently used entry once it is full.
+ * @author willpassidomo
+ */
+class DecisionCache {
+    private final Segment[] segments;
+    private final int maximumSize;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maximumSize the most decisions the cache holds
+     */
+    DecisionCache(int maximumSize) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("Decision cache size must be positive");
+        }
+        int count = Math.min(Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1),
+                Integer.highestOneBit(maximumSize));
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment((maximumSize + count - 1) / count);
+        }
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * Returns the cached decision for authToken and permission, if it was made at
+     * generation and the token has not expired by now
+     * @param authToken the users authToken
+     * @param permission the name of the Permission
+     * @param generation the current generation of the Service
+     * @param now the current time in epoch milliseconds
+     * @return the decision, or null if none is cached
+     */
+    AccessDecision get(String authToken, String permission, long generation, long now) {
+        Key key = new Key(authToken, permission);
+        Segment segment = segmentFor(key);
+        Entry entry;
+        segment.lock.lock();
+        try {
+            entry = segment.map.get(key);
+        } finally {
+            segment.lock.unlock();
+        }
+        if (entry == null || entry.generation != generation || entry.expiresAt <= now) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.decision;
+    }
+
+    /**
+     * Caches decision, made at generation, for authToken and permission
+     * @param authToken the users authToken
+     * @param permission the name of the Permission
+     * @param generation the generation of the Service the decision was made at
+     * @param expiresAt the time the token expires at, in epoch milliseconds
+     * @param decision ALLOW or DENY
+     */
+    void put(String authToken, String permission, long generation, long expiresAt, AccessDecision decision) {
+        Key key = new Key(authToken, permission);
+        Segment segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            segment.map.put(key, new Entry(decision, generation, expiresAt));
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the hit, miss and eviction counts and the size of the cache
+     */
+    DecisionCacheStats stats() {
+        int size = 0;
+        for (Segment segment: segments) {
+            segment.lock.lock();
+            try {
+                size += segment.map.size();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return new DecisionCacheStats(hits.sum(), misses.sum(), evictions.sum(), size, maximumSize);
+    }
+
+    private Segment segmentFor(Key key) {
+        int h = key.hash;
+        return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+    }
+
+    private final class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LinkedHashMap<Key, Entry> map;
+
+        private Segment(int capacity) {
+            map = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                    if (size() > capacity) {
+                        evictions.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+    }
+
+    private static final class Key {
+        private final String authToken;
+        private final String permission;
+        private final int hash;
+
+        private Key(String authToken, String permission) {
+            this.authToken = authToken;
+            this.permission = permission;
+            this.hash = authToken.hashCode() * 31 + permission.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof Key) {
+                Key k = (Key) o;
+                return hash == k.hash && authToken.equals(k.authToken) && permission.equals(k.permission);
+            }
+            return false;
+        }
+    }
+
+    private static final class Entry {
+        private final AccessDecision decision;
+        private final long generation;
+        private final long expiresAt;
+
+        private Entry(AccessDecision decision, long generation, long expiresAt) {
+            this.decision = decision;
+            this.generation = generation;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
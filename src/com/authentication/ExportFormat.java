@@ -0,0 +1,25 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+/**
+ * ExportFormat is the format AuthenticationAPI.exportInventory(String, ExportFormat,
+ * OutputStream) writes the inventory of a service in. Both formats hold the same 
+ * records in the same order: the service, each User, each Role, each Permission, 
+ * and a last record with the counts, so a truncated export can be told apart 
+ * from a complete one.
+ * @author willpassidomo
+ */
+public enum ExportFormat {
+    /** one JSON object per line, in UTF-8, each with a "type" member */
+    JSON_LINES,
+    /**
+     * the bytes "AUIX" and a version byte, 1, followed by the records: an op byte,
+     * the number of fields and each field as its UTF-8 length, as a varint, and bytes
+     */
+    BINARY
+}
@@ -0,0 +1,212 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * ExportVisitor (a class designed in accordance with the basic Visitor pattern)
+ * writes a machine-readable record, in an ExportFormat, for every element it
+ * visits. Where InventoryVisitor lists a User's password, the export leaves it
+ * out; Users carry their id, name and Role names, Roles their id, name,
+ * description and Permission names, Permissions their id, name and description.
+ * Records are collected in memory, so that sections of one inventory can be 
+ * rendered by separate visitors in parallel and then written out in order.
+ * @author willpassidomo
+ */
+public class ExportVisitor implements Visitor {
+    static final byte SERVICE = 1;
+    static final byte USER = 2;
+    static final byte ROLE = 3;
+    static final byte PERMISSION = 4;
+    static final byte COMPLETE = 5;
+    
+    private final ExportFormat format;
+    private final StringBuilder json = new StringBuilder();
+    private final ByteArrayOutputStream binary = new ByteArrayOutputStream();
+    
+    /**
+     * @param format the format to write records in
+     */
+    public ExportVisitor(ExportFormat format) {
+        this.format = format;
+    }
+    
+    public void visitElement(Permission permission) {
+        String id = permission.getId().toString();
+        if (format == ExportFormat.BINARY) {
+            record(PERMISSION, id, permission.getName(), permission.getDescription());
+        } else {
+            begin("permission");
+            member("id", id);
+            member("name", permission.getName());
+            member("description", permission.getDescription());
+            end();
+        }
+    }
+    public void visitElement(Service service) {
+        String id = service.getId().toString();
+        if (format == ExportFormat.BINARY) {
+            record(SERVICE, id, service.getName(), service.getDescription());
+        } else {
+            begin("service");
+            member("id", id);
+            member("name", service.getName());
+            member("description", service.getDescription());
+            end();
+        }
+    }
+    public void visitElement(Role role) {
+        String id = role.getId().toString();
+        List<Permission> permissions = role.getPermissions();
+        if (format == ExportFormat.BINARY) {
+            record(ROLE, permissions, id, role.getName(), role.getDescription());
+        } else {
+            begin("role");
+            member("id", id);
+            member("name", role.getName());
+            member("description", role.getDescription());
+            member("permissions", permissions);
+            end();
+        }
+    }
+    public void visitElement(User user) {
+        String id = user.getId().toString();
+        List<Role> roles = user.getRoles();
+        if (format == ExportFormat.BINARY) {
+            record(USER, roles, id, user.getUserName());
+        } else {
+            begin("user");
+            member("id", id);
+            member("name", user.getUserName());
+            member("roles", roles);
+            end();
+        }
+    }
+    
+    /**
+     * writes the last record of an export, with the number of each element in it
+     */
+    void complete(int users, int roles, int permissions) {
+        if (format == ExportFormat.BINARY) {
+            record(COMPLETE, Integer.toString(users), Integer.toString(roles), Integer.toString(permissions));
+        } else {
+            begin("complete");
+            json.append(",\"users\":").append(users)
+                    .append(",\"roles\":").append(roles)
+                    .append(",\"permissions\":").append(permissions);
+            end();
+        }
+    }
+    
+    /**
+     * @return the records written so far, encoded
+     */
+    byte[] toByteArray() {
+        if (format == ExportFormat.BINARY) {
+            return binary.toByteArray();
+        }
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Writes the records visited so far to out
+     * @param out the stream to write to
+     * @throws IOException if out fails
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(toByteArray());
+    }
+    
+    /**
+     * writes a record of fields, a missing description as an empty field
+     */
+    private void record(byte op, String... fields) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] == null) {
+                fields[i] = "";
+            }
+        }
+        byte[] bytes = new JournalRecord(op, fields).encode();
+        binary.write(bytes, 0, bytes.length);
+    }
+    
+    /**
+     * writes a record of fields followed by the name of each element of names
+     */
+    private void record(byte op, List<?> names, String... fields) {
+        String[] all = new String[fields.length + names.size()];
+        System.arraycopy(fields, 0, all, 0, fields.length);
+        for (int i = 0; i < names.size(); i++) {
+            all[fields.length + i] = String.valueOf(names.get(i));
+        }
+        record(op, all);
+    }
+    
+    private void begin(String type) {
+        json.append("{\"type\":\"").append(type).append('"');
+    }
+    
+    private void member(String key, String value) {
+        json.append(",\"").append(key).append("\":");
+        quote(value);
+    }
+    
+    private void member(String key, List<?> names) {
+        json.append(",\"").append(key).append("\":[");
+        for (int i = 0; i < names.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            quote(String.valueOf(names.get(i)));
+        }
+        json.append(']');
+    }
+    
+    private void end() {
+        json.append("}\n");
+    }
+    
+    private void quote(String value) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+}
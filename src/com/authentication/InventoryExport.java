@@ -0,0 +1,106 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * InventoryExport writes the inventory of a service in an ExportFormat. The 
+ * inventory is cut into sections, the service record, runs of USERS_PER_SECTION 
+ * Users in name order, the Roles and the Permissions, each rendered by its own
+ * ExportVisitor on the fork/join pool. Sections are written in that order as 
+ * they finish, so the output is the same however the work was spread, and at 
+ * most a few sections per core are held in memory at once.
+ * @author willpassidomo
+ */
+final class InventoryExport {
+    static final byte[] MAGIC = {'A', 'U', 'I', 'X', 1};
+    static final int USERS_PER_SECTION = 4096;
+
+    private InventoryExport() {
+    }
+
+    /**
+     * @param service the service to export
+     * @param format the format to write
+     * @param out the stream to write to, which is flushed but not closed
+     * @throws IOException if out fails
+     */
+    static void write(Service service, ExportFormat format, OutputStream out) throws IOException {
+        User[] users = service.getSortedUsers().toArray(new User[0]);
+        List<Role> roles = service.getRoles();
+        List<Permission> permissions = service.getPermissions();
+        List<Callable<byte[]>> sections = new ArrayList<>();
+        sections.add(() -> {
+            ExportVisitor visitor = new ExportVisitor(format);
+            service.acceptVisitor(visitor);
+            return visitor.toByteArray();
+        });
+        for (int from = 0; from < users.length; from += USERS_PER_SECTION) {
+            int start = from;
+            int end = Math.min(users.length, from + USERS_PER_SECTION);
+            sections.add(() -> {
+                ExportVisitor visitor = new ExportVisitor(format);
+                for (int i = start; i < end; i++) {
+                    users[i].acceptVisitor(visitor);
+                }
+                return visitor.toByteArray();
+            });
+        }
+        sections.add(() -> {
+            ExportVisitor visitor = new ExportVisitor(format);
+            for (Role role: roles) {
+                role.acceptVisitor(visitor);
+            }
+            for (Permission permission: permissions) {
+                permission.acceptVisitor(visitor);
+            }
+            visitor.complete(users.length, roles.size(), permissions.size());
+            return visitor.toByteArray();
+        });
+        if (format == ExportFormat.BINARY) {
+            out.write(MAGIC);
+        }
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        if (parallelism < 2 || sections.size() < 3) {
+            for (Callable<byte[]> section: sections) {
+                out.write(ForkJoinTask.adapt(section).invoke());
+            }
+        } else {
+            writeParallel(sections, 2 * parallelism, out);
+        }
+        out.flush();
+    }
+
+    /**
+     * renders up to window sections ahead of the one being written
+     */
+    private static void writeParallel(List<Callable<byte[]>> sections, int window, OutputStream out) throws IOException {
+        List<ForkJoinTask<byte[]>> tasks = new ArrayList<>(sections.size());
+        int written = 0;
+        try {
+            while (written < sections.size()) {
+                while (tasks.size() < sections.size() && tasks.size() - written < window) {
+                    tasks.add(ForkJoinPool.commonPool().submit(ForkJoinTask.adapt(sections.get(tasks.size()))));
+                }
+                ForkJoinTask<byte[]> task = tasks.get(written);
+                tasks.set(written++, null);
+                out.write(task.join());
+            }
+        } finally {
+            for (int i = written; i < tasks.size(); i++) {
+                tasks.get(i).cancel(false);
+            }
+        }
+    }
+}
@@ -6,44 +6,57 @@
 
 package com.authentication;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.Iterator;
 
 /**
  *ImplementsVisitor (a class designed in accordance with the basic Visitor pattern). 
  * InventoryVisitor uses its method getInventory to Iterate through the list of 
  * Users of the service, their Roles and their Entitlements and returns a clean, 
- * list in String format.
+ * list in String format. writeInventory streams the same list into an Appendable
+ * as it goes, one element at a time, walking the service's sorted index of Users,
+ * so neither the inventory nor a copy of the Users is ever held in memory.
  * @author willpassidomo
  */
 public class InventoryVisitor implements Visitor {
-    private String inventory = "";
+    private final Appendable inventory;
+    
+    /**
+     * an InventoryVisitor collecting the inventory for getInventory(Service)
+     */
+    public InventoryVisitor() {
+        this(new StringBuilder());
+    }
+    
+    /**
+     * @param inventory where writeInventory(Service) and the visitElement methods 
+     * write to
+     */
+    public InventoryVisitor(Appendable inventory) {
+        this.inventory = inventory;
+    }
+    
     public void visitElement(Permission permission) {
-        String name = permission.getName();
-        String description = permission.getDescription();
-        inventory = inventory.concat(name + ": "+description+"\n");
+        write(permission.getName(), ": ", permission.getDescription(), "\n");
     }
     public void visitElement(Service service) {
-        String name = service.getName();
-        String description = service.getDescription();
-        List<User> list = new ArrayList<User>(service.getUsers().values());
-        Collections.sort(list);
-        String users = list+"";
-        String roles = service.getRoles()+"";
-        inventory = inventory.concat(name+": "+description+"\n\tusers: " +users+"\n\trole: "+roles+"\n");
+        write(service.getName(), ": ", service.getDescription(), "\n\tusers: ");
+        writeList(service.getSortedUsers());
+        write("\n\trole: ");
+        writeList(service.getRoles());
+        write("\n");
     }
     public void visitElement(Role role) {
-        String name = role.getName();
-        String description = role.getDescription();
-        String permissions = role.getPermissions()+"";
-        inventory = inventory.concat(name+": "+description+"\n\t permissions: "+permissions+"\n");
+        write(role.getName(), ": ", role.getDescription(), "\n\t permissions: ");
+        writeList(role.getPermissions());
+        write("\n");
     }
     public void visitElement(User user) {
-        String name = user.getUserName();
-        String password = user.getPassword();
-        String roles = user.getRoles()+"";
-        inventory = inventory.concat(name+ ": password-"+password+": "+roles+"\n");
+        write(user.getUserName(), ": password-", user.getPassword(), ": ");
+        writeList(user.getRoles());
+        write("\n");
     }  
         
     /**
@@ -53,33 +66,78 @@ public class InventoryVisitor implements Visitor {
      * @return the inventory of the service
      */
     public String getInventory(Service service) {
-        getUsers(service);
-        getRoles(service);
-        getPermissions(service);
-        inventory = inventory.concat("INVENTORY COMPLETE\n");
-        return inventory;
+        try {
+            writeInventory(service);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return inventory.toString();
+    }
+    
+    /**
+     * Writes the Inventory of getInventory(Service) to the Appendable this visitor
+     * was made with, element by element
+     * @param service the service to write the Inventory of
+     * @throws IOException if the Appendable fails
+     */
+    public void writeInventory(Service service) throws IOException {
+        try {
+            getUsers(service);
+            getRoles(service);
+            getPermissions(service);
+            write("INVENTORY COMPLETE\n");
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
     }
     
     private void getPermissions(Service service) {
-        inventory = inventory.concat("PERMISSIONS:\n");
+        write("PERMISSIONS:\n");
         for (Permission permission: service.getPermissions()) {
             permission.acceptVisitor(this);
         }
     }
     
     private void getRoles(Service service) {
-        inventory = inventory.concat("ROLES:\n");
+        write("ROLES:\n");
         for (Role role: service.getRoles()) {
             role.acceptVisitor(this);
         }
     }
     
     private void getUsers(Service service) {
-        inventory = inventory.concat("USERS:\n");
-        List<User> list = new ArrayList<>(service.getUsers().values());
-        Collections.sort(list);
-        for (User user: list) {
+        write("USERS:\n");
+        for (User user: service.getSortedUsers()) {
             user.acceptVisitor(this);
         }
     }
+    
+    /**
+     * writes elements the way List.toString() would, without building the String
+     */
+    private void writeList(Collection<?> elements) {
+        write("[");
+        Iterator<?> it = elements.iterator();
+        while (it.hasNext()) {
+            write(String.valueOf(it.next()));
+            if (it.hasNext()) {
+                write(", ");
+            }
+        }
+        write("]");
+    }
+    
+    /**
+     * the visitElement methods can not throw IOException, so it is carried out of 
+     * them unchecked and unwrapped again by writeInventory(Service)
+     */
+    private void write(CharSequence... parts) {
+        try {
+            for (CharSequence part: parts) {
+                inventory.append(part);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
 }
@@ -0,0 +1,290 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Journal is the write-ahead log of mutations. The header holds the epoch of the
+ * journal, which goes up each time a snapshot takes over its records and it is
+ * reset; a journal whose epoch is older than the snapshot loaded before it only
+ * holds records the snapshot has, so it is reset instead of replayed.
+ * After the header, each record is
+ * framed by its length and a CRC32 of its bytes, so a record torn by a crash is
+ * detected on replay and cut off, along with anything after it.
+ * Writers append their record to an in-memory batch, which is cheap, and then
+ * wait for it to be durable with await(long). Durability uses group commit: the
+ * first waiter becomes the leader, takes the whole batch, writes it and forces it
+ * to disk once, while every record appended meanwhile collects in the next batch
+ * for the next leader. Under concurrent writers one fsync covers many mutations
+ * instead of one each. Once a write or fsync fails the Journal stays failed, and
+ * every later await throws, since the heap has moved past what is on disk.
+ * @author willpassidomo
+ */
+class Journal implements Closeable {
+    private static final long MAGIC = 0x415554484A524E4CL;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 20;
+    private static final int FRAME_SIZE = 8;
+    private static final int MAX_RECORD = 1 << 24;
+
+    private final FileChannel channel;
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private ByteArrayOutputStream batch = new ByteArrayOutputStream(4096);
+    private long appended;
+    private long epoch;
+    private volatile long durable;
+    private volatile IOException failure;
+
+    /**
+     * a mutation to journal, returning its result
+     */
+    interface Mutation<T, E extends Exception> {
+        T apply() throws E;
+    }
+
+    /**
+     * a mutation to journal, without a result
+     */
+    interface Action<E extends Exception> {
+        void run() throws E;
+    }
+
+    private Journal(FileChannel channel, long epoch) {
+        this.channel = channel;
+        this.epoch = epoch;
+    }
+
+    /**
+     * Opens the journal at path, creating it if it does not exist, and hands each
+     * record in it to replay, in order. A torn or corrupt tail is cut off
+     * @param path the journal file
+     * @param minEpoch the epoch of the snapshot loaded, or 0; an older journal is
+     * reset to minEpoch without being replayed
+     * @param replay applies a record again
+     * @return the Journal, positioned to append after the last good record
+     * @throws IOException if the file can not be read or is not a journal
+     */
+    static Journal open(Path path, long minEpoch, Consumer<JournalRecord> replay) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long epoch = channel.size() < HEADER_SIZE ? -1 : readHeader(channel);
+            long end;
+            if (epoch < minEpoch) {
+                epoch = minEpoch;
+                end = writeHeader(channel, epoch);
+            } else {
+                end = readRecords(channel, replay);
+            }
+            channel.truncate(end);
+            channel.position(end);
+            channel.force(true);
+            return new Journal(channel, epoch);
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    private static long writeHeader(FileChannel channel, long epoch) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putLong(MAGIC).putInt(VERSION).putLong(epoch);
+        header.flip();
+        channel.truncate(0);
+        writeFully(channel, header, 0);
+        return HEADER_SIZE;
+    }
+
+    private static long readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, 0);
+        if (header.getLong(0) != MAGIC || header.getInt(8) != VERSION) {
+            throw new IOException("Not a journal, or a journal of another version");
+        }
+        return header.getLong(12);
+    }
+
+    private static long readRecords(FileChannel channel, Consumer<JournalRecord> replay) throws IOException {
+        long position = HEADER_SIZE;
+        long size = channel.size();
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE);
+        CRC32 crc = new CRC32();
+        while (size - position >= FRAME_SIZE) {
+            frame.clear();
+            readFully(channel, frame, position);
+            int length = frame.getInt(0);
+            if (length <= 0 || length > MAX_RECORD || size - position - FRAME_SIZE < length) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(length);
+            readFully(channel, body, position + FRAME_SIZE);
+            crc.reset();
+            crc.update(body.array());
+            if ((int) crc.getValue() != frame.getInt(4)) {
+                break;
+            }
+            JournalRecord record;
+            try {
+                record = JournalRecord.decode(body.array());
+            } catch (IllegalArgumentException ex) {
+                break;
+            }
+            replay.accept(record);
+            position += FRAME_SIZE + length;
+        }
+        return position;
+    }
+
+    /**
+     * Adds record to the batch waiting to be written
+     * @param record the record to append
+     * @return the sequence number to pass to await(long)
+     */
+    long append(JournalRecord record) {
+        byte[] body = record.encode();
+        if (body.length > MAX_RECORD) {
+            throw new IllegalArgumentException("Journal record too large");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE).putInt(body.length).putInt((int) crc.getValue());
+        appendLock.lock();
+        try {
+            batch.write(frame.array(), 0, FRAME_SIZE);
+            batch.write(body, 0, body.length);
+            return ++appended;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the record with sequence number seq is on disk, writing and
+     * forcing the current batch if no other thread is doing so already
+     * @param seq a sequence number returned by append(JournalRecord)
+     * @throws UncheckedIOException if the journal could not be written
+     */
+    void await(long seq) {
+        if (durable >= seq) {
+            return;
+        }
+        syncLock.lock();
+        try {
+            if (failure != null) {
+                throw new UncheckedIOException("Journal failed, restart to recover", failure);
+            }
+            if (durable >= seq) {
+                return;
+            }
+            ByteArrayOutputStream pending;
+            long upTo;
+            appendLock.lock();
+            try {
+                pending = batch;
+                upTo = appended;
+                batch = new ByteArrayOutputStream(Math.max(4096, pending.size()));
+            } finally {
+                appendLock.unlock();
+            }
+            try {
+                writeFully(channel, ByteBuffer.wrap(pending.toByteArray()), channel.position());
+                channel.position(channel.position() + pending.size());
+                channel.force(false);
+            } catch (IOException ex) {
+                failure = ex;
+                throw new UncheckedIOException("Journal failed, restart to recover", ex);
+            }
+            durable = upTo;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Empties the journal once a snapshot holding every record appended so far is
+     * on disk, and moves it to the snapshot's epoch. Records appended but not yet
+     * written are dropped, since the snapshot has them, and count as durable. 
+     * Called while no mutation can append
+     * @param newEpoch the epoch of the snapshot
+     * @throws IOException if the journal could not be reset, which fails it
+     */
+    void reset(long newEpoch) throws IOException {
+        syncLock.lock();
+        try {
+            appendLock.lock();
+            try {
+                try {
+                    writeHeader(channel, newEpoch);
+                    channel.position(HEADER_SIZE);
+                    channel.force(true);
+                } catch (IOException ex) {
+                    failure = ex;
+                    throw ex;
+                }
+                batch = new ByteArrayOutputStream(4096);
+                epoch = newEpoch;
+                durable = appended;
+            } finally {
+                appendLock.unlock();
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * @return the epoch of the journal, that of the last snapshot to take over its
+     * records
+     */
+    long getEpoch() {
+        syncLock.lock();
+        try {
+            return epoch;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * @return the sequence number of the last record known to be on disk
+     */
+    long getDurable() {
+        return durable;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of journal");
+            }
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A JournalRecord is one mutation as it is written to the Journal: an op code and
+ * the string arguments needed to apply the mutation again. Passwords are only
+ * ever recorded already hashed. Encoded, a record is the op byte, the number of
+ * fields and each field as its UTF-8 length, as a varint, and bytes. Snapshots
+ * store their entries in the same encoding, with their own op codes.
+ * @author willpassidomo
+ */
+final class JournalRecord {
+    static final byte NEW_ROOT_USER = 1;
+    static final byte NEW_INSTANCE = 2;
+    static final byte DELETE_INSTANCE = 3;
+    static final byte ADD_USER = 4;
+    static final byte REMOVE_USER = 5;
+    static final byte UPDATE_USER_LOGIN = 6;
+    static final byte ASSIGN_ROLE = 7;
+    static final byte REMOVE_ROLE = 8;
+    static final byte ADD_ROLE = 9;
+    static final byte DELETE_ROLE = 10;
+    static final byte UPDATE_ROLE = 11;
+    static final byte ADD_PERMISSION_TO_ROLE = 12;
+    static final byte NEW_PERMISSION = 13;
+    static final byte REMOVE_ENTITLEMENT = 14;
+    static final byte UPDATE_PERMISSION = 15;
+    static final byte DELETE_PERMISSION = 16;
+    static final byte SET_TOKEN_TTL = 17;
+    static final byte REHASH_PASSWORD = 18;
+
+    private final byte op;
+    private final String[] fields;
+
+    JournalRecord(byte op, String... fields) {
+        this.op = op;
+        this.fields = fields;
+    }
+
+    byte getOp() {
+        return op;
+    }
+
+    /**
+     * @param i the index of the field
+     * @return the i-th field of the record
+     */
+    String field(int i) {
+        return fields[i];
+    }
+
+    /**
+     * @return the number of fields of the record
+     */
+    int size() {
+        return fields.length;
+    }
+
+    /**
+     * @return the record encoded as bytes
+     */
+    byte[] encode() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 * (fields.length + 1));
+        out.write(op);
+        writeVarint(out, fields.length);
+        for (String field: fields) {
+            byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+            writeVarint(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param bytes a record encoded by encode()
+     * @return the decoded record
+     * @throws IllegalArgumentException if bytes is not an encoded record
+     */
+    static JournalRecord decode(byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        JournalRecord record = read(in);
+        if (in.hasRemaining()) {
+            throw new IllegalArgumentException("Trailing bytes after journal record");
+        }
+        return record;
+    }
+
+    /**
+     * Decodes the record at the position of in, and moves the position past it
+     * @param in a buffer holding encoded records, such as a mapped snapshot block
+     * @return the decoded record
+     * @throws IllegalArgumentException if in does not hold an encoded record there
+     */
+    static JournalRecord read(ByteBuffer in) {
+        try {
+            byte op = in.get();
+            String[] fields = new String[readVarint(in)];
+            byte[] field = new byte[64];
+            for (int i = 0; i < fields.length; i++) {
+                int length = readVarint(in);
+                if (length > field.length) {
+                    field = new byte[Math.max(length, field.length * 2)];
+                }
+                in.get(field, 0, length);
+                fields[i] = new String(field, 0, length, StandardCharsets.UTF_8);
+            }
+            return new JournalRecord(op, fields);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException ex) {
+            throw new IllegalArgumentException("Truncated journal record", ex);
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint in journal record");
+    }
+}
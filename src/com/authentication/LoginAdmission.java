@@ -0,0 +1,117 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LoginAdmission decides, before any password is hashed, whether a login may go
+ * ahead. A login must get through the token bucket of its service and then the
+ * token bucket of its user name, so a flood of new names is held back by the 
+ * service's bucket before it takes any room among the per-name buckets. Then it
+ * must find room under the concurrency limit all logins of the process share.
+ * That limit adapts: it grows by one for each login finishing within 
+ * TARGET_LATENCY and shrinks by a tenth for each one taking longer, so it settles
+ * at what the password threads can actually serve, and logins beyond it are shed
+ * at once instead of queueing. Everything is lock-free.
+ * @author willpassidomo
+ */
+class LoginAdmission {
+    static final double DEFAULT_USER_RATE = 1;
+    static final int DEFAULT_USER_BURST = 5;
+    static final double DEFAULT_SERVICE_RATE = 500;
+    static final int DEFAULT_SERVICE_BURST = 1000;
+    static final long TARGET_LATENCY = TimeUnit.SECONDS.toNanos(1);
+
+    private static final int MIN_LIMIT = 1;
+    private static final int MAX_LIMIT = PasswordVerifier.QUEUE_CAPACITY;
+    private static final AtomicInteger limit = new AtomicInteger(
+            Math.max(MIN_LIMIT, Runtime.getRuntime().availableProcessors()));
+    private static final AtomicInteger inFlight = new AtomicInteger();
+
+    private volatile RateLimiter users;
+    private volatile RateLimiter service;
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+
+    LoginAdmission() {
+        setLimits(DEFAULT_USER_RATE, DEFAULT_USER_BURST, DEFAULT_SERVICE_RATE, DEFAULT_SERVICE_BURST);
+    }
+
+    /**
+     * @param userRate the logins per second let through for each user name
+     * @param userBurst the logins let through at once for each user name
+     * @param serviceRate the logins per second let through for the service
+     * @param serviceBurst the logins let through at once for the service
+     */
+    void setLimits(double userRate, int userBurst, double serviceRate, int serviceBurst) {
+        RateLimiter newUsers = new RateLimiter(userRate, userBurst);
+        RateLimiter newService = new RateLimiter(serviceRate, serviceBurst);
+        users = newUsers;
+        service = newService;
+    }
+
+    /**
+     * Admits a login for userName, or throws the preallocated rejection. An
+     * admitted login must be followed by release(long) with the returned time
+     * @param userName the user name logging in
+     * @return the time the login was admitted at, from System.nanoTime()
+     * @throws LoginRejectedException if the login is throttled or shed
+     */
+    long admit(String userName) {
+        long now = System.nanoTime();
+        if (!service.tryAcquire(now) || !users.tryAcquire(userName, now)) {
+            throttled.increment();
+            throw LoginRejectedException.THROTTLED;
+        }
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit.get()) {
+                shed.increment();
+                throw LoginRejectedException.SHED;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                admitted.increment();
+                return now;
+            }
+        }
+    }
+
+    /**
+     * Counts a login which was admitted but then turned away by the password
+     * threads, whose queue was full, as shed
+     * @return the preallocated SHED rejection, to be thrown
+     */
+    LoginRejectedException shed() {
+        shed.increment();
+        return LoginRejectedException.SHED;
+    }
+
+    /**
+     * Ends an admitted login, adapting the concurrency limit to how long it took
+     * @param admittedAt the time returned by admit(String)
+     */
+    void release(long admittedAt) {
+        inFlight.decrementAndGet();
+        long latency = System.nanoTime() - admittedAt;
+        if (latency <= TARGET_LATENCY) {
+            limit.getAndUpdate(l -> Math.min(MAX_LIMIT, l + 1));
+        } else {
+            limit.getAndUpdate(l -> Math.max(MIN_LIMIT, l - Math.max(1, l / 10)));
+        }
+    }
+
+    /**
+     * @return the counters of this admission control and the shared concurrency limit
+     */
+    LoginAdmissionStats stats() {
+        return new LoginAdmissionStats(admitted.sum(), throttled.sum(), shed.sum(), inFlight.get(), limit.get());
+    }
+}
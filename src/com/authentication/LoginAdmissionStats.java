@@ -0,0 +1,70 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+/**
+ * LoginAdmissionStats is a point in time copy of the login admission counters of
+ * a service, or of root users, with the concurrency limit and number of logins in
+ * progress shared by the whole process.
+ * @author willpassidomo
+ */
+public final class LoginAdmissionStats {
+    private final long admitted;
+    private final long throttled;
+    private final long shed;
+    private final int inFlight;
+    private final int concurrencyLimit;
+
+    LoginAdmissionStats(long admitted, long throttled, long shed, int inFlight, int concurrencyLimit) {
+        this.admitted = admitted;
+        this.throttled = throttled;
+        this.shed = shed;
+        this.inFlight = inFlight;
+        this.concurrencyLimit = concurrencyLimit;
+    }
+
+    /**
+     * @return the number of logins let through to have their password checked
+     */
+    public long getAdmitted() {
+        return admitted;
+    }
+
+    /**
+     * @return the number of logins turned away by a user name or service rate limit
+     */
+    public long getThrottled() {
+        return throttled;
+    }
+
+    /**
+     * @return the number of logins turned away because too many were in progress
+     */
+    public long getShed() {
+        return shed;
+    }
+
+    /**
+     * @return the number of logins in progress in the process
+     */
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return the current adaptive limit on logins in progress in the process
+     */
+    public int getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    @Override
+    public String toString() {
+        return "admitted: "+admitted+" throttled: "+throttled+" shed: "+shed
+                +" in flight: "+inFlight+"/"+concurrencyLimit;
+    }
+}
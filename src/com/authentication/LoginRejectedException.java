@@ -0,0 +1,38 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+/**
+ * LoginRejectedException is thrown when a login is turned away by admission
+ * control before its password is checked, either because its user name or service
+ * is over its login rate, THROTTLED, or because too many logins are in progress,
+ * SHED. Rejections must stay cheap under a flood, so the exception is never
+ * constructed per login: the preallocated THROTTLED and SHED instances are thrown,
+ * without a stack trace.
+ * @author willpassidomo
+ */
+public class LoginRejectedException extends RuntimeException {
+    public static final LoginRejectedException THROTTLED =
+            new LoginRejectedException("Too many logins for this user or service, try again later", false);
+    public static final LoginRejectedException SHED =
+            new LoginRejectedException("Too many logins in progress, try again later", true);
+
+    private final boolean shed;
+
+    private LoginRejectedException(String message, boolean shed) {
+        super(message, null, false, false);
+        this.shed = shed;
+    }
+
+    /**
+     * @return true if the login was shed because too many logins were in progress,
+     * false if it was throttled by a rate limit
+     */
+    public boolean isShed() {
+        return shed;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+
+/**
+ * A Page is one page of a sorted listing of Users, Roles or Permissions, with the
+ * cursor to ask for the next one. Listings are kept sorted as they change, so a 
+ * page is found from its cursor in logarithmic time and costs no more than the 
+ * items on it, however long the listing. Pages reflect the listing as it is when
+ * each is read: an item added or removed between pages is or is not seen, but no
+ * item is ever returned twice.
+ * @author willpassidomo
+ */
+public final class Page<T> {
+    private final List<T> items;
+    private final String nextCursor;
+
+    Page(List<T> items, String nextCursor) {
+        this.items = Collections.unmodifiableList(items);
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * @param index the sorted listing
+     * @param cursor the cursor of the previous page, or null for the first page
+     * @param limit the most items to return
+     * @return the items of index following cursor
+     * @throws IllegalArgumentException if limit is less than 1
+     */
+    static <T> Page<T> of(NavigableMap<String, T> index, String cursor, int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Page limit must be positive: "+limit);
+        }
+        NavigableMap<String, T> rest = cursor == null ? index : index.tailMap(cursor, false);
+        List<T> items = new ArrayList<>(Math.min(limit, 256));
+        String last = null;
+        for (Map.Entry<String, T> entry: rest.entrySet()) {
+            if (items.size() == limit) {
+                return new Page<>(items, last);
+            }
+            items.add(entry.getValue());
+            last = entry.getKey();
+        }
+        return new Page<>(items, null);
+    }
+
+    /**
+     * @return the items of the page, in listing order
+     */
+    public List<T> getItems() {
+        return items;
+    }
+
+    /**
+     * @return the cursor to pass for the next page, or null if this is the last
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * @return true if there is a page after this one
+     */
+    public boolean hasNext() {
+        return nextCursor != null;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+/**
+ * A PasswordHasher turns passwords into the strings stored for Users and checks
+ * passwords against them. A stored hash carries everything needed to verify it,
+ * such as its salt and cost, so the cost can be raised without invalidating the
+ * hashes already stored; needsRehash tells when a stored hash should be replaced.
+ * @author willpassidomo
+ */
+public interface PasswordHasher {
+
+    /**
+     * @param password the password to hash
+     * @return the string to store for the password
+     */
+    String hash(String password);
+
+    /**
+     * @param password the password to be tested
+     * @param stored a string returned by hash(String)
+     * @return true if password is the password stored was made from
+     */
+    boolean verify(String password, String stored);
+
+    /**
+     * @param stored a stored password hash
+     * @return true if stored is not in this hasher's current format or cost, and
+     * should be replaced by a new hash the next time its password is known
+     */
+    boolean needsRehash(String stored);
+}
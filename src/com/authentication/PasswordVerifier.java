@@ -0,0 +1,173 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * PasswordVerifier runs the hashing and verifying of passwords on a dedicated,
+ * bounded pool of threads, half the cores, with a bounded queue in front of it.
+ * A key derivation function is meant to be slow, so a burst of logins waits in
+ * the queue instead of taking every core from the threads checking access, and
+ * once the queue is full further logins are refused instead of piling up. The
+ * async variants hand the work over and return at once, so no caller thread is
+ * held waiting on the pool.
+ * When a password verifies against a hash the PasswordHasher wants replaced, such
+ * as one made by the original hashPassword, the User's hash is replaced with a new
+ * one, so stored hashes migrate as their Users log in.
+ * A login for a userName with no User is verified against a hash of a fixed 
+ * password made by the current PasswordHasher, so it costs the same key derivation
+ * as a wrong password and does not tell whether the userName exists.
+ * @author willpassidomo
+ */
+class PasswordVerifier {
+    static final int QUEUE_CAPACITY = 1024;
+    private static final String MISSING_USER_PASSWORD = "no user has this password";
+
+    private final ThreadPoolExecutor executor;
+    private volatile Hashing hashing;
+
+    /**
+     * @param hasher the PasswordHasher new hashes are made with
+     */
+    PasswordVerifier(PasswordHasher hasher) {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY), runnable -> {
+                    Thread thread = new Thread(runnable, "password-verifier-"+count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        hashing = new Hashing(hasher);
+    }
+
+    /**
+     * @param hasher the PasswordHasher new hashes are made with from now on
+     */
+    void setHasher(PasswordHasher hasher) {
+        hashing = new Hashing(hasher);
+    }
+
+    /**
+     * Hashes password on the verifier's threads, waiting for the result
+     * @param password the password to hash
+     * @return the string to store for the password
+     * @throws RejectedExecutionException if too many passwords are waiting already
+     */
+    String hash(String password) {
+        PasswordHasher current = hashing.hasher;
+        return run(() -> current.hash(password));
+    }
+
+    /**
+     * Verifies password against the stored hash of user on the verifier's threads,
+     * waiting for the result, and migrates the hash if it is out of date
+     * @param user the User logging in, or null to spend the same work and fail
+     * @param password the password to be tested
+     * @return true if password is the User's password
+     * @throws RejectedExecutionException if too many passwords are waiting already
+     */
+    boolean verify(User user, String password) {
+        return run(verifyTask(user, password)::get);
+    }
+
+    /**
+     * Like hash(String), without waiting for the result
+     * @param password the password to hash
+     * @return a future completed with the string to store for the password
+     * @throws RejectedExecutionException if too many passwords are waiting already
+     */
+    CompletableFuture<String> hashAsync(String password) {
+        PasswordHasher current = hashing.hasher;
+        return CompletableFuture.supplyAsync(() -> current.hash(password), executor);
+    }
+
+    /**
+     * Like verify(User, String), without waiting for the result
+     * @param user the User logging in, or null to spend the same work and fail
+     * @param password the password to be tested
+     * @return a future completed with true if password is the User's password
+     * @throws RejectedExecutionException if too many passwords are waiting already
+     */
+    CompletableFuture<Boolean> verifyAsync(User user, String password) {
+        return CompletableFuture.supplyAsync(verifyTask(user, password), executor);
+    }
+
+    private Supplier<Boolean> verifyTask(User user, String password) {
+        Hashing current = hashing;
+        return () -> {
+            if (user == null) {
+                current.hasher.verify(password, current.missingUserHash());
+                return false;
+            }
+            String stored = user.getPassword();
+            if (!current.hasher.verify(password, stored)) {
+                return false;
+            }
+            if (current.hasher.needsRehash(stored)) {
+                user.replacePassword(stored, current.hasher.hash(password));
+            }
+            return true;
+        };
+    }
+
+    /**
+     * a PasswordHasher with the hash missing Users are verified against. The hash
+     * is handed to the verifier's threads as soon as the hasher is set, ahead of 
+     * any verification using it. If their queue is full it is made instead by the
+     * first verification needing it, so setting a hasher is never refused
+     */
+    private final class Hashing {
+        final PasswordHasher hasher;
+        private final CompletableFuture<String> missingUserHash = new CompletableFuture<>();
+
+        Hashing(PasswordHasher hasher) {
+            this.hasher = hasher;
+            try {
+                executor.execute(this::makeMissingUserHash);
+            } catch (RejectedExecutionException ex) {
+                // made by missingUserHash() instead
+            }
+        }
+
+        String missingUserHash() {
+            if (!missingUserHash.isDone()) {
+                makeMissingUserHash();
+            }
+            return missingUserHash.join();
+        }
+
+        private void makeMissingUserHash() {
+            missingUserHash.complete(hasher.hash(MISSING_USER_PASSWORD));
+        }
+    }
+
+    private <T> T run(Callable<T> task) {
+        try {
+            return executor.submit(task).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for password check", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
@@ -7,9 +7,9 @@
 package com.authentication;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The Permission class represents a single permission which should correspond 
@@ -25,7 +25,7 @@ public class Permission implements Comparable, Visitable, Entitlement {
     private String name;
     private UUID id;
     private String description;
-    private static HashMap<String, Permission> permissions = new HashMap<String, Permission>();
+    private static final ConcurrentHashMap<String, Permission> permissions = new ConcurrentHashMap<>();
     
     private Permission (String name, String description) {
         this.name = name;
@@ -34,14 +34,13 @@ public class Permission implements Comparable, Visitable, Entitlement {
     }
     
     public static Permission newPermission(Service service, String name, String description) {
-        if (permissions.containsKey(name.toLowerCase())) {
-            return permissions.get(name);
-        } else {
-            Permission permission = new Permission(name, description);
-            permissions.put(name.toLowerCase(), permission);
-            service.addPermission(permission);
-            return permission;
+        Permission permission = new Permission(name, description);
+        Permission existing = permissions.putIfAbsent(name.toLowerCase(), permission);
+        if (existing != null) {
+            return existing;
         }
+        service.addPermission(permission);
+        return permission;
     }
 
     /**
@@ -0,0 +1,161 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * PolicySnapshot is an immutable, versioned copy of the part of a Service's
+ * users-roles-permissions model that access checks need: the id of every Permission
+ * and the effective-permission bitset of every User. A Service publishes a new
+ * snapshot through a single volatile field after each change, so a check reads one
+ * consistent version of the policy without locking, however the model is changed
+ * meanwhile. Users are numbered densely by their Service and their bitsets are kept
+ * in pages of PAGE_SIZE Users; a new version copies only the page table and the
+ * pages it changes and shares the rest with the version before it.
+ * @author willpassidomo
+ */
+public final class PolicySnapshot {
+    private static final int PAGE_BITS = 6;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final long[] NONE = new long[0];
+
+    private final long version;
+    private final Map<String, Integer> permissionIds;
+    private final long[][][] pages;
+
+    /**
+     * creates the empty version 0 policy of a new Service
+     */
+    PolicySnapshot() {
+        this(0, Collections.<String, Integer>emptyMap(), new long[0][][]);
+    }
+
+    private PolicySnapshot(long version, Map<String, Integer> permissionIds, long[][][] pages) {
+        this.version = version;
+        this.permissionIds = permissionIds;
+        this.pages = pages;
+    }
+
+    /**
+     * @return the version of the policy, which goes up by one with every change
+     * the Service publishes
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @param permissionName the name of the Permission
+     * @return the id of the Permission in this version, or -1 if it has none
+     */
+    int getPermissionId(String permissionName) {
+        Integer id = permissionIds.get(permissionName);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * tests whether user has the Permission with id permissionId in this version
+     * @param user a User of the Service the snapshot belongs to
+     * @param permissionId the id of the Permission, or -1
+     * @return true if the User has the Permission, false if they do not, or if
+     * permissionId is negative
+     */
+    boolean hasPermission(User user, int permissionId) {
+        return RoleGraph.isSet(getPermissions(user.getPolicyIndex()), permissionId);
+    }
+
+    /**
+     * @param userIndex the index the Service gave the User
+     * @return the effective-permission bitset of the User, which must not be modified
+     */
+    long[] getPermissions(int userIndex) {
+        int page = userIndex >>> PAGE_BITS;
+        if (userIndex < 0 || page >= pages.length || pages[page] == null) {
+            return NONE;
+        }
+        long[] bits = pages[page][userIndex & (PAGE_SIZE - 1)];
+        return bits == null ? NONE : bits;
+    }
+
+    /**
+     * @return a Builder for the next version, starting from this one
+     */
+    Builder edit() {
+        return new Builder(this);
+    }
+
+    /**
+     * Builder collects the changes making up the next version of a policy. A page is
+     * copied the first time one of its Users is changed; every other page is shared
+     */
+    static final class Builder {
+        private final PolicySnapshot base;
+        private Map<String, Integer> permissionIds;
+        private long[][][] pages;
+        private boolean[] copied;
+
+        private Builder(PolicySnapshot base) {
+            this.base = base;
+            this.permissionIds = base.permissionIds;
+            this.pages = base.pages;
+        }
+
+        /**
+         * @param ids the id of every Permission of the Service, which is copied
+         * @return this Builder
+         */
+        Builder setPermissionIds(Map<String, Integer> ids) {
+            permissionIds = Collections.unmodifiableMap(new HashMap<>(ids));
+            return this;
+        }
+
+        /**
+         * drops the bitsets of every User, for a Service whose Users are replaced
+         * @return this Builder
+         */
+        Builder clearPermissions() {
+            pages = new long[0][][];
+            copied = null;
+            return this;
+        }
+
+        /**
+         * @param userIndex the index the Service gave the User
+         * @param bits the User's new effective-permission bitset, or null to clear it
+         * @return this Builder
+         */
+        Builder setPermissions(int userIndex, long[] bits) {
+            int page = userIndex >>> PAGE_BITS;
+            if (copied == null || page >= pages.length) {
+                long[][][] grown = new long[Math.max(pages.length, page + 1)][][];
+                System.arraycopy(pages, 0, grown, 0, pages.length);
+                boolean[] grownCopied = new boolean[grown.length];
+                if (copied != null) {
+                    System.arraycopy(copied, 0, grownCopied, 0, copied.length);
+                }
+                pages = grown;
+                copied = grownCopied;
+            }
+            if (!copied[page]) {
+                pages[page] = pages[page] == null ? new long[PAGE_SIZE][] : pages[page].clone();
+                copied[page] = true;
+            }
+            pages[page][userIndex & (PAGE_SIZE - 1)] = bits;
+            return this;
+        }
+
+        /**
+         * @return the next version of the policy
+         */
+        PolicySnapshot build() {
+            return new PolicySnapshot(base.version + 1, permissionIds, pages);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RateLimiter is a lock-free token bucket, kept as the single time at which the
+ * bucket would be full again (the generic cell rate algorithm). A request is let
+ * through if that time is less than one burst ahead of now, and pushes it one
+ * interval further, in a single compare-and-set. tryAcquire(String, long) keeps
+ * one such bucket per key, for at most MAX_KEYS keys. Buckets which have refilled
+ * completely carry no state, so when a new key finds the limiter full they are 
+ * swept out, at most once per refill time so the sweep stays amortized. If none
+ * could be dropped the new key is refused until some can.
+ * @author willpassidomo
+ */
+class RateLimiter {
+    static final int MAX_KEYS = 100000;
+
+    private final long interval;
+    private final long tolerance;
+    private final AtomicLong bucket = new AtomicLong(Long.MIN_VALUE);
+    private final ConcurrentHashMap<String, AtomicLong> keyed = new ConcurrentHashMap<>();
+    private final AtomicInteger keyCount = new AtomicInteger();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private volatile long nextSweep = System.nanoTime();
+
+    /**
+     * @param perSecond the sustained number of requests let through per second
+     * @param burst the number of requests let through at once by a full bucket
+     */
+    RateLimiter(double perSecond, int burst) {
+        if (perSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate and burst must be positive");
+        }
+        this.interval = Math.max(1, (long) (1000000000L / perSecond));
+        this.tolerance = interval * (burst - 1);
+    }
+
+    /**
+     * @param now the current time, from System.nanoTime()
+     * @return true if the request is let through by the limiter's single bucket
+     */
+    boolean tryAcquire(long now) {
+        return tryAcquire(bucket, now);
+    }
+
+    /**
+     * @param key the key whose bucket is charged, such as a user name
+     * @param now the current time, from System.nanoTime()
+     * @return true if the request is let through by the bucket of key, false if
+     * it is not or key is new and MAX_KEYS keys are tracked already
+     */
+    boolean tryAcquire(String key, long now) {
+        AtomicLong state = keyed.get(key);
+        if (state == null) {
+            if (!reserveKey(now)) {
+                return false;
+            }
+            AtomicLong created = new AtomicLong(Long.MIN_VALUE);
+            state = keyed.putIfAbsent(key, created);
+            if (state == null) {
+                state = created;
+            } else {
+                keyCount.decrementAndGet();
+            }
+        }
+        return tryAcquire(state, now);
+    }
+
+    /**
+     * takes room for one more key, sweeping if there is none
+     * @return false if MAX_KEYS keys are tracked and none could be dropped
+     */
+    private boolean reserveKey(long now) {
+        while (true) {
+            int count = keyCount.get();
+            if (count >= MAX_KEYS) {
+                if (!sweep(now)) {
+                    return false;
+                }
+            } else if (keyCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean tryAcquire(AtomicLong state, long now) {
+        while (true) {
+            long full = state.get();
+            long start = full == Long.MIN_VALUE || full - now < 0 ? now : full;
+            if (start - now > tolerance) {
+                return false;
+            }
+            if (state.compareAndSet(full, start + interval)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * drops the buckets which are full again by now, one thread at a time and
+     * once per refill time, by which every bucket kept now will be full again
+     * @return true if this call swept and dropped at least one bucket
+     */
+    private boolean sweep(long now) {
+        if (now - nextSweep < 0 || !sweeping.compareAndSet(false, true)) {
+            return false;
+        }
+        int dropped = 0;
+        try {
+            Iterator<AtomicLong> it = keyed.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().get() - now <= 0) {
+                    it.remove();
+                    dropped++;
+                }
+            }
+        } finally {
+            keyCount.addAndGet(-dropped);
+            nextSweep = now + tolerance + interval;
+            sweeping.set(false);
+        }
+        return dropped > 0;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * RevocationList records signed tokens which have been logged out before they
+ * expired. A revoked token only needs to be remembered until its own expiry, after
+ * which it is rejected anyway, so revoked token ids are grouped into buckets by
+ * expiry and a whole bucket is dropped once every token in it has expired. Each
+ * bucket is an open-addressing set of primitive longs, 8 bytes per revoked token,
+ * so the list never holds more than the tokens revoked within one time to live.
+ * Expired buckets are dropped as tokens are revoked, and by purgeIfDue, which
+ * the generator calls as it checks tokens, so the list also shrinks once a
+ * service stops revoking.
+ * Writers are serialized by a lock; isRevoked takes no lock, since a slot only ever
+ * goes from empty to holding a token id and a grown set is published whole.
+ * @author willpassidomo
+ */
+class RevocationList {
+    private static final long EMPTY = 0L;
+
+    private final long bucketMillis;
+    private final ConcurrentSkipListMap<Long, Bucket> buckets = new ConcurrentSkipListMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile int size;
+    private volatile long nextPurge = Long.MAX_VALUE;
+
+    /**
+     * @param bucketMillis the width, in milliseconds, of the expiry range of each bucket
+     */
+    RevocationList(long bucketMillis) {
+        this.bucketMillis = bucketMillis;
+    }
+
+    /**
+     * Revokes the token identified by tokenId, which expires at expiresAt
+     * @param tokenId the id of the token
+     * @param expiresAt the time the token expires at, in epoch milliseconds
+     * @param now the current time in epoch milliseconds
+     */
+    void revoke(long tokenId, long expiresAt, long now) {
+        lock.lock();
+        try {
+            purge(now);
+            if (expiresAt <= now) {
+                return;
+            }
+            long key = expiresAt / bucketMillis;
+            Bucket bucket = buckets.computeIfAbsent(key, k -> new Bucket());
+            if (bucket.add(key(tokenId))) {
+                size++;
+            }
+            nextPurge = Math.min(nextPurge, (key + 1) * bucketMillis);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * tests whether the token identified by tokenId, which expires at expiresAt,
+     * has been revoked
+     * @param tokenId the id of the token
+     * @param expiresAt the time the token expires at, in epoch milliseconds
+     * @return true if the token has been revoked
+     */
+    boolean isRevoked(long tokenId, long expiresAt) {
+        Bucket bucket = buckets.get(expiresAt / bucketMillis);
+        return bucket != null && bucket.contains(key(tokenId));
+    }
+
+    /**
+     * Drops every bucket whose tokens have all expired by now
+     * @param now the current time in epoch milliseconds
+     */
+    void purge(long now) {
+        lock.lock();
+        try {
+            Iterator<Map.Entry<Long, Bucket>> it = buckets.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, Bucket> entry = it.next();
+                if ((entry.getKey() + 1) * bucketMillis > now) {
+                    break;
+                }
+                size -= entry.getValue().count;
+                it.remove();
+            }
+            Map.Entry<Long, Bucket> first = buckets.firstEntry();
+            nextPurge = first == null ? Long.MAX_VALUE : (first.getKey() + 1) * bucketMillis;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like purge(long), but only if a bucket has expired by now and no other thread
+     * is changing the list, so it costs a single read when there is nothing to drop
+     * @param now the current time in epoch milliseconds
+     */
+    void purgeIfDue(long now) {
+        if (now < nextPurge || !lock.tryLock()) {
+            return;
+        }
+        try {
+            purge(now);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of revoked tokens still remembered
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * 0 marks an empty slot, so the one token id of 0 is stored as 1
+     */
+    private static long key(long tokenId) {
+        return tokenId == EMPTY ? 1L : tokenId;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Bucket is the set of revoked token ids expiring within one bucketMillis range
+     */
+    private static final class Bucket {
+        private volatile AtomicLongArray slots = new AtomicLongArray(16);
+        private int count;
+
+        private boolean contains(long key) {
+            AtomicLongArray set = slots;
+            int mask = set.length() - 1;
+            for (int i = mix(key) & mask; set.get(i) != EMPTY; i = (i + 1) & mask) {
+                if (set.get(i) == key) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean add(long key) {
+            if (contains(key)) {
+                return false;
+            }
+            if ((count + 1) * 2 > slots.length()) {
+                AtomicLongArray grown = new AtomicLongArray(slots.length() * 2);
+                for (int i = 0; i < slots.length(); i++) {
+                    if (slots.get(i) != EMPTY) {
+                        insert(grown, slots.get(i));
+                    }
+                }
+                slots = grown;
+            }
+            insert(slots, key);
+            count++;
+            return true;
+        }
+
+        private static void insert(AtomicLongArray set, long key) {
+            int mask = set.length() - 1;
+            int i = mix(key) & mask;
+            while (set.get(i) != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            set.set(i, key);
+        }
+    }
+}
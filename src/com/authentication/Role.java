@@ -7,10 +7,12 @@
 package com.authentication;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * The Role class represents a classification of a set of Permissions. The permissions 
@@ -20,15 +22,18 @@ import java.util.UUID;
  * Permision Instances associated with the service.  Role has 2 methods, the 
  * implementation of the abstract acceptVisitor(Visitor) and newRole(String, String) 
  * which uses the Flyweight pattern to construct new Role objects or return existing 
- * Role objects
+ * Role objects. Changes to a Role's Entitlements are made holding its service's 
+ * write lock, so the closures of the service's RoleGraph stay consistent
  * @author willpassidomo
  */
 public class Role implements Comparable, Visitable, Entitlement {
     private UUID id;
     private String name;
     private String description;
-    private HashMap<String, Entitlement> permissions = new HashMap<>();
-    private static HashMap<String, Role> roles = new HashMap<>();
+    private final ConcurrentHashMap<String, Entitlement> permissions = new ConcurrentHashMap<>();
+    private volatile Service service;
+    private static final ConcurrentHashMap<String, Role> roles = new ConcurrentHashMap<>();
+    private static final ReentrantLock unboundLock = new ReentrantLock();
     
     private Role (String name, String description) {
         this.name = name;
@@ -37,14 +42,14 @@ public class Role implements Comparable, Visitable, Entitlement {
     }
     
     public static Role newRole(Service service, String name, String description) {
-        if (roles.containsKey(name.toLowerCase())) {
-            return roles.get(name);
-        } else {
-            Role newRole = new Role(name, description);
-            roles.put(name.toLowerCase(), newRole);
-            service.addRole(newRole);
-            return newRole;
+        Role newRole = new Role(name, description);
+        newRole.service = service;
+        Role existing = roles.putIfAbsent(name.toLowerCase(), newRole);
+        if (existing != null) {
+            return existing;
         }
+        service.addRole(newRole);
+        return newRole;
     }
     
     public static Role getRole(String roleName) {
@@ -54,8 +59,9 @@ public class Role implements Comparable, Visitable, Entitlement {
     
     public static void deleteRole(String name) {
         Role role = roles.remove(name);
-        roles.remove(role.getName());
-        role = null;
+        if (role != null) {
+            roles.remove(role.getName());
+        }
     }
     
     public static List<Role> getAllRoles() {
@@ -88,22 +94,145 @@ public class Role implements Comparable, Visitable, Entitlement {
         return this.name;
     }
     
+    /**
+     * Adds the Entitlement, permission, to the Role. permission may be a Permission
+     * or another Role, in which case every Permission of that Role is granted too
+     * @param permission the Entitlement to add
+     * @throws IllegalArgumentException if permission is a Role which contains, 
+     * directly or indirectly, this Role
+     */
     public void addPermission(Entitlement permission) {
-        permissions.put(permission.getName(), permission);
+        ReentrantLock lock = writeLock();
+        lock.lock();
+        try {
+            checkForCycle(permission);
+            permissions.put(permission.getName(), permission);
+            permissionsChanged();
+        } finally {
+            lock.unlock();
+        }
     }
     
+    /**
+     * Adds every Entitlement of permissionss to the Role, or none of them
+     * @param permissionss the Entitlements to add
+     * @throws IllegalArgumentException if any of permissionss is a Role which 
+     * contains, directly or indirectly, this Role
+     */
     public void addPermission(List<Entitlement> permissionss) {
-        for (Entitlement permission: permissionss) {
-            this.addPermission(permission);
+        ReentrantLock lock = writeLock();
+        lock.lock();
+        try {
+            checkForCycles(permissionss);
+            for (Entitlement permission: permissionss) {
+                permissions.put(permission.getName(), permission);
+            }
+            permissionsChanged();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Replaces the Entitlements of the Role with permissionss, or leaves them as 
+     * they are if any of permissionss would make a cycle
+     * @param permissionss the Entitlements the Role is to have
+     * @throws IllegalArgumentException if any of permissionss is a Role which 
+     * contains, directly or indirectly, this Role
+     */
+    void replacePermissions(List<Entitlement> permissionss) {
+        ReentrantLock lock = writeLock();
+        lock.lock();
+        try {
+            checkForCycles(permissionss);
+            permissions.clear();
+            for (Entitlement permission: permissionss) {
+                permissions.put(permission.getName(), permission);
+            }
+            permissionsChanged();
+        } finally {
+            lock.unlock();
         }
     }
     
     public void removePermission(String permissionID) {
-        permissions.remove(permissionID);
+        ReentrantLock lock = writeLock();
+        lock.lock();
+        try {
+            permissions.remove(permissionID);
+            permissionsChanged();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * removes the Entitlement named name without rebuilding anything, for the 
+     * service to rebuild once after changing many Roles. Called holding the write
+     * lock
+     * @return true if the Role had the Entitlement
+     */
+    boolean dropEntitlement(String name) {
+        return permissions.remove(name) != null;
     }
     
     public void removePermissions() {
-        permissions.clear();
+        ReentrantLock lock = writeLock();
+        lock.lock();
+        try {
+            permissions.clear();
+            permissionsChanged();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * @return the Entitlements directly added to the Role
+     */
+    Collection<Entitlement> getEntitlements() {
+        return permissions.values();
+    }
+    
+    /**
+     * throws IllegalArgumentException if adding permission to the Role would make
+     * the Role contain itself
+     */
+    /**
+     * checks every one of permissionss before any is added. Adding them one at a 
+     * time can not make a cycle none of them makes alone, since any such cycle 
+     * would pass through this Role already
+     */
+    private void checkForCycles(List<Entitlement> permissionss) {
+        for (Entitlement permission: permissionss) {
+            checkForCycle(permission);
+        }
+    }
+    
+    private void checkForCycle(Entitlement permission) {
+        if (permission instanceof Role && service != null 
+                && service.getRoleGraph().createsCycle(this, (Role) permission)) {
+            throw new IllegalArgumentException("Role: "+permission.getName()+" already contains role: "+name);
+        }
+    }
+    
+    /**
+     * @return the write lock of the Role's service, or a shared lock for Roles 
+     * without a service
+     */
+    private ReentrantLock writeLock() {
+        Service owner = service;
+        return owner != null ? owner.getWriteLock() : unboundLock;
+    }
+    
+    /**
+     * tells the Role's service to rebuild the effective-permission bitsets of the
+     * Users who hold the Role
+     */
+    private void permissionsChanged() {
+        if (service != null) {
+            service.rebuildPermissions(this);
+        }
     }
     
     @Override
@@ -117,8 +246,17 @@ public class Role implements Comparable, Visitable, Entitlement {
         return permissionslist;
     }
     
+    /**
+     * tests whether the Role grants the Permission named permission, directly or
+     * through one of its nested Roles
+     * @param permission the name of the Permission to be tested
+     * @return true if the Role grants the Permission, false if it does not
+     */
     public boolean hasPermission(String permission) {
-        return permissions.containsKey(permission);
+        if (service == null) {
+            return permissions.containsKey(permission);
+        }
+        return service.getRoleGraph().hasPermission(this, service.getPermissionId(permission));
     }
     
 
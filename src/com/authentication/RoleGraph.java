@@ -0,0 +1,204 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * RoleGraph maintains the transitive closure of the Role/Entitlement graph of a
+ * Service. For every Role it keeps a bitset of all the Permissions the Role grants,
+ * directly or through nested Roles, using the Permission ids assigned by the Service.
+ * It also tracks which Roles contain each Role, so when the Entitlements of one Role
+ * change only that Role and the Roles above it are recomputed. Roles may not contain
+ * themselves, directly or indirectly, checked by createsCycle(Role, Role).
+ * Closures are read without locking; every change to the graph, including 
+ * computing a closure which is missing, is made holding the Service's write lock.
+ * @author willpassidomo
+ */
+class RoleGraph {
+    private final Service service;
+    private final ConcurrentHashMap<Role, long[]> closures = new ConcurrentHashMap<>();
+    private final HashMap<Role, Set<Role>> children = new HashMap<>();
+    private final HashMap<Role, Set<Role>> parents = new HashMap<>();
+
+    RoleGraph(Service service) {
+        this.service = service;
+    }
+
+    /**
+     * Returns the bitset of every Permission granted by role, directly or through
+     * nested Roles. The returned array is never modified and must not be modified by
+     * the caller
+     * @param role the Role to look up
+     * @return the effective-permission bitset of role
+     */
+    long[] getClosure(Role role) {
+        long[] closure = closures.get(role);
+        if (closure == null) {
+            ReentrantLock lock = service.getWriteLock();
+            lock.lock();
+            try {
+                closure = closures.get(role);
+                if (closure == null) {
+                    recompute(role);
+                    closure = closures.get(role);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return closure;
+    }
+
+    /**
+     * tests whether role grants the Permission with id permissionId, directly
+     * or through nested Roles
+     * @param role the Role to be tested
+     * @param permissionId the id of the Permission
+     * @return true if the Role grants the Permission, false if it does not
+     */
+    boolean hasPermission(Role role, int permissionId) {
+        return isSet(getClosure(role), permissionId);
+    }
+
+    /**
+     * Tests whether adding child to the Entitlements of parent would create a cycle,
+     * that is whether parent is child or is already reachable from child
+     * @param parent the Role that would contain child
+     * @param child the Role to be added
+     * @return true if the edge parent -> child would create a cycle
+     */
+    boolean createsCycle(Role parent, Role child) {
+        Set<Role> seen = new HashSet<>();
+        Deque<Role> stack = new ArrayDeque<>();
+        stack.push(child);
+        while (!stack.isEmpty()) {
+            Role role = stack.pop();
+            if (role == parent) {
+                return true;
+            }
+            if (seen.add(role)) {
+                for (Entitlement entitlement: role.getEntitlements()) {
+                    if (entitlement instanceof Role) {
+                        stack.push((Role) entitlement);
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Recomputes the closure of role from its direct Entitlements, then
+     * recomputes each Role above it whose closure changed as a result.
+     * @param role the Role whose Entitlements changed
+     * @return every Role whose closure changed, including role
+     */
+    Set<Role> entitlementsChanged(Role role) {
+        Set<Role> changed = new HashSet<>();
+        Deque<Role> queue = new ArrayDeque<>();
+        queue.add(role);
+        while (!queue.isEmpty()) {
+            Role next = queue.poll();
+            if (recompute(next)) {
+                changed.add(next);
+                queue.addAll(parents.getOrDefault(next, Collections.<Role>emptySet()));
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Forgets role and the edges to the Roles it contains. Roles which still
+     * contain role keep its last closure until their own Entitlements change
+     * @param role the Role being deleted
+     */
+    void removeRole(Role role) {
+        closures.remove(role);
+        for (Role child: children.getOrDefault(role, Collections.<Role>emptySet())) {
+            Set<Role> set = parents.get(child);
+            if (set != null) {
+                set.remove(role);
+            }
+        }
+        children.remove(role);
+    }
+
+    /**
+     * rebuilds the closure and child edges of a single Role
+     * @return true if the closure of role changed
+     */
+    private boolean recompute(Role role) {
+        long[] bits = new long[0];
+        Set<Role> newChildren = new HashSet<>();
+        for (Entitlement entitlement: role.getEntitlements()) {
+            if (entitlement instanceof Role) {
+                Role child = (Role) entitlement;
+                newChildren.add(child);
+                bits = or(bits, getClosure(child));
+            } else {
+                bits = set(bits, service.assignPermissionId(entitlement.getName()));
+            }
+        }
+        Set<Role> oldChildren = children.put(role, newChildren);
+        if (oldChildren != null) {
+            for (Role child: oldChildren) {
+                if (!newChildren.contains(child)) {
+                    parents.get(child).remove(role);
+                }
+            }
+        }
+        for (Role child: newChildren) {
+            parents.computeIfAbsent(child, k -> new HashSet<>()).add(role);
+        }
+        long[] old = closures.put(role, bits);
+        return old == null || !Arrays.equals(trim(old), trim(bits));
+    }
+
+    static boolean isSet(long[] bits, int id) {
+        if (id < 0) {
+            return false;
+        }
+        int word = id >>> 6;
+        return word < bits.length && (bits[word] & (1L << id)) != 0;
+    }
+
+    static long[] set(long[] bits, int id) {
+        int word = id >>> 6;
+        if (word >= bits.length) {
+            bits = Arrays.copyOf(bits, word + 1);
+        }
+        bits[word] |= 1L << id;
+        return bits;
+    }
+
+    static long[] or(long[] bits, long[] other) {
+        if (other.length > bits.length) {
+            bits = Arrays.copyOf(bits, other.length);
+        }
+        for (int i = 0; i < other.length; i++) {
+            bits[i] |= other[i];
+        }
+        return bits;
+    }
+
+    private static long[] trim(long[] bits) {
+        int length = bits.length;
+        while (length > 0 && bits[length - 1] == 0) {
+            length--;
+        }
+        return length == bits.length ? bits : Arrays.copyOf(bits, length);
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A RootSession is a handle on an AuthenticationAPI instance bound to one rootUser
+ * authToken, returned by AuthenticationAPI.bindRootSession(String) once the token
+ * has been checked. Instead of looking the root token up again on every call, a
+ * RootSession remembers when it expires and only compares that with the clock;
+ * the token is checked again once that time is reached. rootUser authTokens are
+ * never removed before they expire, so the expiry is all that can change.
+ * @author willpassidomo
+ */
+public final class RootSession {
+    private final AuthenticationAPI api;
+    private final String rootAuthToken;
+    private volatile long expiresAt;
+
+    RootSession(AuthenticationAPI api, String rootAuthToken) throws InvalidAccessTokenException {
+        this.api = api;
+        this.rootAuthToken = rootAuthToken;
+        this.expiresAt = AuthenticationAPI.checkRootExpiry(rootAuthToken);
+    }
+
+    /**
+     * @return true if the root authToken the session is bound to has not expired
+     */
+    public boolean isValid() {
+        if (AuthenticationAPI.rootClockMillis() < expiresAt) {
+            return true;
+        }
+        try {
+            checkRoot();
+            return true;
+        } catch (InvalidAccessTokenException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the time the root authToken expires at, in epoch milliseconds
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Like AuthenticationAPI.decideAccess(String, String, String), without
+     * checking the root token again
+     * @param authToken the users authToken
+     * @param permission the permission to check
+     * @return ALLOW if the User has the permission, DENY if they dont, TOKEN_EXPIRED
+     * or TOKEN_UNKNOWN if authToken is not valid and ROOT_INVALID if the session's
+     * root authToken has expired
+     */
+    public AccessDecision decideAccess(String authToken, String permission) {
+        if (!isValid()) {
+            return AccessDecision.ROOT_INVALID;
+        }
+        return api.decideUserAccess(authToken, permission);
+    }
+
+    /**
+     * @param authToken the users authToken
+     * @param permission the permission to check
+     * @return true if the User has the permission, false if they dont or if either
+     * token is not valid
+     */
+    public boolean checkAccessBOOL(String authToken, String permission) {
+        return decideAccess(authToken, permission) == AccessDecision.ALLOW;
+    }
+
+    /**
+     * Like AuthenticationAPI.checkAccess(String, String, String), without
+     * checking the root token again
+     * @param authToken a valid user authToken
+     * @param permission the permission to check
+     * @throws InvalidAccessTokenException if the User's access token or the
+     * session's root access token is not a valid token or expired
+     * @throws AccessDeniedException if the User's access token is valid, but
+     * the User does not have the specified permission
+     */
+    public void checkAccess(String authToken, String permission) throws InvalidAccessTokenException, AccessDeniedException {
+        checkRoot();
+        api.checkUserAccess(authToken, permission);
+    }
+
+    /**
+     * Like AuthenticationAPI.checkAccess(String, String, Collection), without
+     * checking the root token again
+     * @param authToken a valid user authToken
+     * @param permissions the names of the permissions to check
+     * @return a BitSet with bit i set if the User has the i-th Permission of
+     * permissions, in iteration order
+     * @throws InvalidAccessTokenException if the User's access token or the
+     * session's root access token is not a valid token or expired
+     */
+    public BitSet checkAccess(String authToken, Collection<String> permissions) throws InvalidAccessTokenException {
+        checkRoot();
+        return api.checkUserAccess(authToken, permissions);
+    }
+
+    /**
+     * Like AuthenticationAPI.checkAccess(String, List, String), without
+     * checking the root token again
+     * @param authTokens the users authTokens
+     * @param permission the permission to check
+     * @return a BitSet with bit i set if the i-th token of authTokens is valid and
+     * its User has the permission
+     * @throws InvalidAccessTokenException if the session's root access token has
+     * expired
+     */
+    public BitSet checkAccess(List<String> authTokens, String permission) throws InvalidAccessTokenException {
+        checkRoot();
+        return api.checkUsersAccess(authTokens, permission);
+    }
+
+    /**
+     * Like AuthenticationAPI.logIn(String, String, String), without checking the
+     * root token again. Logins throttled or shed by admission control return null
+     * at once, without logging
+     * @param userName the username of the User logging in
+     * @param password the password of the User logging in
+     * @return a valid user authToken for the User with name, userName
+     */
+    public String logIn(String userName, String password) {
+        try {
+            checkRoot();
+            return api.logInUser(userName, password);
+        } catch (LoginRejectedException ex) {
+            return null;
+        } catch (AuthenticationException | InvalidAccessTokenException ex) {
+            System.out.println(ex.getMessage());
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Like AuthenticationAPI.logout(String, String), without checking the root
+     * token again
+     * @param authToken a valid user authToken
+     */
+    public void logout(String authToken) {
+        try {
+            checkRoot();
+            api.logoutUser(authToken);
+        } catch (InvalidAccessTokenException ex) {
+            System.out.println(ex.getMessage());
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * checks the root token again only once the remembered expiry has been reached
+     */
+    private void checkRoot() throws InvalidAccessTokenException {
+        if (AuthenticationAPI.rootClockMillis() >= expiresAt) {
+            expiresAt = AuthenticationAPI.checkRootExpiry(rootAuthToken);
+        }
+    }
+}
@@ -7,56 +7,125 @@
 package com.authentication;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  *The Service class represents a service which is associated with an instance of 
  * AuthenticationAPI. Service has 1 method, the abstract acceptVisitor(Visitor). 
  * Service has 4 fields, id, name, description and a HashMap representing the 
  * User accounts associated with the service.
+ * Service is safe to use from many threads. Its maps are concurrent, so lookups
+ * never lock, and every change to the Roles or Users of the service, which must 
+ * also update the RoleGraph and the Users' effective-permission bitsets, is made 
+ * holding the service's write lock. Each change ends by publishing a new, 
+ * immutable PolicySnapshot, so an access check reads one consistent version of 
+ * the policy through a single volatile load.
  * @author willpassidomo
  */
 public class Service implements Comparable, Visitable {
+    /**
+     * the order Users, Roles and Permissions are listed in, the order of their 
+     * compareTo methods: by name ignoring case, from Z to A. Names differing only
+     * in case are told apart, so no two keys are ever merged
+     */
+    static final Comparator<String> NAME_ORDER = 
+            String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.<String>naturalOrder()).reversed();
+    
     private UUID id;
     private String name;
     private String description;
     private AuthTokenGenerator tokenGen = new AuthTokenGenerator();
-    private HashMap<String,User> users = new HashMap<>();
-    private HashMap<String,Role> roles = new HashMap<>();
-    private HashMap<String,Permission> permissions = new HashMap<>();
-    private static HashMap<String, Service> services = new HashMap<>();
+    private volatile ConcurrentHashMap<String,User> users = new ConcurrentHashMap<>();
+    private volatile ConcurrentHashMap<UUID,User> usersById = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<String,User> userIndex = new ConcurrentSkipListMap<>(NAME_ORDER);
+    private final ConcurrentSkipListMap<String,Role> roles = new ConcurrentSkipListMap<>(NAME_ORDER);
+    private final ConcurrentSkipListMap<String,Permission> permissions = new ConcurrentSkipListMap<>(NAME_ORDER);
+    private final ConcurrentHashMap<String,Integer> permissionIds = new ConcurrentHashMap<>();
+    private final AtomicInteger nextPermissionId = new AtomicInteger();
+    private int nextPolicyIndex;
+    private int[] freePolicyIndices = new int[16];
+    private int freePolicyIndexCount;
+    private boolean permissionIdsChanged;
+    private volatile PolicySnapshot policy = new PolicySnapshot();
+    private final AtomicLong generation = new AtomicLong();
+    private volatile DecisionCache decisionCache;
+    private final LoginAdmission loginAdmission = new LoginAdmission();
+    private final ChangeFeed changeFeed = new ChangeFeed();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final RoleGraph roleGraph = new RoleGraph(this);
+    private final HashMap<Role,Set<User>> holders = new HashMap<>();
+    private static final ConcurrentHashMap<String, Service> services = new ConcurrentHashMap<>();
     
     private Service(String name, String description) {
         this.name = name;
         this.description = description;
         this.id = UUID.randomUUID();
+        tokenGen.setRemovalListener(generation::incrementAndGet);
     }
     
     public static Service newService(String name, String description) {
-        if (services.containsKey(name.toLowerCase())) {
-            return services.get(name.toLowerCase());
-        } else {
-            Service newService = new Service(name, description.toLowerCase());
-            services.put(name.toLowerCase(), newService);
-            return newService;
-        }
+        return services.computeIfAbsent(normalizeName(name), 
+                key -> new Service(name, description.toLowerCase()));
+    }
+    
+    /**
+     * removes the Service registered under the normalized name, name
+     */
+    static void deleteService(String name) {
+        services.remove(name);
+    }
+    
+    /**
+     * @param name the name of a Service
+     * @return the key Services are registered and looked up by, the trimmed, 
+     * lowercase name
+     */
+    static String normalizeName(String name) {
+        return name.trim().toLowerCase();
     }
     
     public void addRole(Role role) {
         roles.put(role.getName().trim().toLowerCase(), role);
     }
     
+    /**
+     * deletes the Role with id roleID the way deleteRole(String) does
+     * @param roleID the id of the Role to delete
+     */
     public void removeRole(UUID roleID) {
-        roles.remove(roleID);
+        for (Map.Entry<String,Role> entry: roles.entrySet()) {
+            if (entry.getValue().getId().equals(roleID)) {
+                deleteRole(entry.getKey());
+                return;
+            }
+        }
     }
     
     public List<Role> getRoles() {
-        List<Role> roleL = new ArrayList<>(roles.values());
-        Collections.sort(roleL);
-        return roleL;
+        return new ArrayList<>(roles.values());
+    }
+    
+    /**
+     * @param cursor the cursor of the previous page, or null for the first page
+     * @param limit the most Roles to return
+     * @return the Roles following cursor, in the order of getRoles()
+     */
+    Page<Role> getRoles(String cursor, int limit) {
+        return Page.of(roles, cursor, limit);
     }
     
     public Role getRole(String roleName) {
@@ -64,18 +133,44 @@ public class Service implements Comparable, Visitable {
     }
     
     public void deleteRole(String roleName) {
-        roles.remove(roleName);
-        Role.deleteRole(roleName);
+        writeLock.lock();
+        try {
+            Role role = roles.remove(roleName);
+            if (role != null) {
+                roleGraph.removeRole(role);
+            }
+            Role.deleteRole(roleName);
+        } finally {
+            writeLock.unlock();
+        }
     }
     
     public void addPermission(Permission permission) {
-        permissions.put(permission.getName(), permission);
+        writeLock.lock();
+        try {
+            permissions.put(permission.getName(), permission);
+            assignPermissionId(permission.getName());
+            publishPolicy(Collections.<User>emptyList());
+        } finally {
+            writeLock.unlock();
+        }
     }
     
     public void removePermission(String permissionName) {
-        permissions.remove(permissionName);
-        for (Role role: this.getRoles()) {
-            role.removePermission(permissionName);
+        writeLock.lock();
+        try {
+            permissions.remove(permissionName);
+            permissionIds.remove(permissionName);
+            permissionIdsChanged = true;
+            Set<Role> changed = new HashSet<>();
+            for (Role role: roles.values()) {
+                if (role.dropEntitlement(permissionName)) {
+                    changed.addAll(roleGraph.entitlementsChanged(role));
+                }
+            }
+            publishPolicy(holdersOf(changed));
+        } finally {
+            writeLock.unlock();
         }
     }
     
@@ -84,9 +179,214 @@ public class Service implements Comparable, Visitable {
     }
     
     public List<Permission> getPermissions() {
-        List<Permission> permission = new ArrayList<>(permissions.values());
-        Collections.sort(permission);
-        return permission;
+        return new ArrayList<>(permissions.values());
+    }
+    
+    /**
+     * @param cursor the cursor of the previous page, or null for the first page
+     * @param limit the most Permissions to return
+     * @return the Permissions following cursor, in the order of getPermissions()
+     */
+    Page<Permission> getPermissions(String cursor, int limit) {
+        return Page.of(permissions, cursor, limit);
+    }
+    
+    /**
+     * Returns the dense int id this service assigned to the Permission named
+     * permissionName, or -1 if the service has no id for that name. The id is
+     * the bit position of the Permission in each User's effective-permission bitset
+     * @param permissionName the name of the Permission
+     * @return the id of the Permission, or -1 if it has none
+     */
+    int getPermissionId(String permissionName) {
+        Integer id = permissionIds.get(permissionName);
+        return id == null ? -1 : id;
+    }
+    
+    /**
+     * Returns the id of the Permission named permissionName, assigning the next 
+     * free id if the service has not seen the name before. Ids are never reused,
+     * so a stale bit left over from a deleted Permission can never grant a new one.
+     * Called holding the write lock
+     * @param permissionName the name of the Permission
+     * @return the id of the Permission
+     */
+    int assignPermissionId(String permissionName) {
+        Integer id = permissionIds.get(permissionName);
+        if (id == null) {
+            id = permissionIds.computeIfAbsent(permissionName, name -> {
+                permissionIdsChanged = true;
+                return nextPermissionId.getAndIncrement();
+            });
+        }
+        return id;
+    }
+    
+    /**
+     * Updates the transitive closure of role and of every Role containing it, then
+     * publishes a new PolicySnapshot with the rebuilt effective-permission bitset 
+     * of every User of the service who holds one of the affected Roles. Called, 
+     * holding the write lock, whenever the Entitlements of role change
+     * @param role the Role whose Entitlements changed
+     */
+    void rebuildPermissions(Role role) {
+        publishPolicy(holdersOf(roleGraph.entitlementsChanged(role)));
+    }
+    
+    /**
+     * @return the Users holding any of roles, found through the reverse index of
+     * Role holders rather than by scanning every User. Called holding the write lock
+     */
+    private Set<User> holdersOf(Set<Role> roles) {
+        Set<User> affected = new HashSet<>();
+        for (Role role: roles) {
+            Set<User> held = holders.get(role);
+            if (held != null) {
+                affected.addAll(held);
+            }
+        }
+        return affected;
+    }
+    
+    /**
+     * records that user holds role, in the reverse index rebuildPermissions(Role)
+     * finds the Users affected by a change to a Role in. Called holding the write 
+     * lock
+     */
+    void roleAssigned(User user, Role role) {
+        holders.computeIfAbsent(role, r -> new HashSet<>()).add(user);
+    }
+    
+    /**
+     * records that user no longer holds role. Called holding the write lock
+     */
+    void roleUnassigned(User user, Role role) {
+        Set<User> held = holders.get(role);
+        if (held != null && held.remove(user) && held.isEmpty()) {
+            holders.remove(role);
+        }
+    }
+    
+    /**
+     * Publishes the next version of the service's PolicySnapshot, with the 
+     * recomputed permissions of each User in changed and, if any Permission ids 
+     * were assigned or removed since the last version, the new ids. Does nothing
+     * if nothing changed. Called holding the write lock
+     * @param changed the Users whose permissions may have changed
+     */
+    void publishPolicy(Collection<User> changed) {
+        if (changed.isEmpty() && !permissionIdsChanged) {
+            return;
+        }
+        PolicySnapshot.Builder next = policy.edit();
+        if (permissionIdsChanged) {
+            next.setPermissionIds(permissionIds);
+            permissionIdsChanged = false;
+        }
+        for (User user: changed) {
+            if (user.getPolicyIndex() >= 0) {
+                next.setPermissions(user.getPolicyIndex(), computePermissions(user));
+            }
+        }
+        setPolicy(next.build());
+    }
+    
+    /**
+     * publishes policy, then bumps the generation, so a reader who sees the new 
+     * generation also sees the new policy
+     */
+    private void setPolicy(PolicySnapshot policy) {
+        this.policy = policy;
+        generation.incrementAndGet();
+    }
+    
+    /**
+     * @return the generation of the service, which goes up with every change to 
+     * its policy and every token removed from its AuthTokenGenerator
+     */
+    long getGeneration() {
+        return generation.get();
+    }
+    
+    /**
+     * @return the service's decision cache, or null if decisions are not cached
+     */
+    DecisionCache getDecisionCache() {
+        return decisionCache;
+    }
+    
+    /**
+     * Starts caching the access decisions of the service, replacing any existing
+     * cache, or stops caching them
+     * @param maximumSize the most decisions to cache, or 0 to stop caching
+     */
+    public void setDecisionCacheSize(int maximumSize) {
+        decisionCache = maximumSize == 0 ? null : new DecisionCache(maximumSize);
+    }
+    
+    /**
+     * @return the admission control logins to the service go through
+     */
+    LoginAdmission getLoginAdmission() {
+        return loginAdmission;
+    }
+    
+    /**
+     * @return the feed the service's mutations are published to
+     */
+    ChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
+    
+    /**
+     * @return the counters of the service's decision cache, or null if decisions
+     * are not cached
+     */
+    public DecisionCacheStats getDecisionCacheStats() {
+        DecisionCache cache = decisionCache;
+        return cache == null ? null : cache.stats();
+    }
+    
+    /**
+     * computes the effective-permission bitset of user from the transitive closures
+     * of the User's Roles, so Permissions granted through nested Roles are included
+     */
+    private long[] computePermissions(User user) {
+        long[] bits = new long[0];
+        for (Role role: user.roles.values()) {
+            bits = RoleGraph.or(bits, roleGraph.getClosure(role));
+        }
+        return bits;
+    }
+    
+    /**
+     * @return the current version of the service's policy, read without locking
+     */
+    PolicySnapshot getPolicy() {
+        return policy;
+    }
+    
+    /**
+     * @return the version of the service's current policy, which goes up by one 
+     * with every change to its Users' permissions or its Permissions
+     */
+    public long getPolicyVersion() {
+        return policy.getVersion();
+    }
+    
+    /**
+     * @return the transitive closure of the service's Role/Entitlement graph
+     */
+    RoleGraph getRoleGraph() {
+        return roleGraph;
+    }
+    
+    /**
+     * @return the lock held while the Roles, Entitlements or role assignments of
+     * the service change
+     */
+    ReentrantLock getWriteLock() {
+        return writeLock;
     }
     
     public static List<Service> getServices() {
@@ -142,11 +442,34 @@ public class Service implements Comparable, Visitable {
     }
 
     /**
-     * @return the users
+     * @return a copy of the users, by lowercase user name
      */
     public HashMap<String,User> getUsers() {
+        return new HashMap<>(users);
+    }
+    
+    /**
+     * @return the users by lowercase user name, live, for reading without a copy
+     */
+    ConcurrentHashMap<String,User> getUserMap() {
         return users;
-        
+    }
+    
+    /**
+     * @return the Users of the service, sorted as by their compareTo method, kept 
+     * that way as Users are added and removed
+     */
+    Collection<User> getSortedUsers() {
+        return userIndex.values();
+    }
+    
+    /**
+     * @param cursor the cursor of the previous page, or null for the first page
+     * @param limit the most Users to return
+     * @return the Users following cursor, in the order of getSortedUsers()
+     */
+    Page<User> getUsers(String cursor, int limit) {
+        return Page.of(userIndex, cursor, limit);
     }
     
     public User getUser(String userName) {
@@ -163,15 +486,91 @@ public class Service implements Comparable, Visitable {
         throw new AuthenticationException("Incorrect UserName and/or Password", userName, password);
     }
     
-    public void addUser(User user) {
-        users.put(user.getUserName().trim().toLowerCase(), user);
+    /**
+     * Adds user to the service unless the service already has a User with the 
+     * same userName
+     * @param user the User to add
+     * @return true if user was added, false if the userName is taken
+     */
+    public boolean addUser(User user) {
+        writeLock.lock();
+        try {
+            String key = user.getUserName().trim().toLowerCase();
+            if (users.putIfAbsent(key, user) != null) {
+                return false;
+            }
+            user.setPolicyIndex(allocatePolicyIndex());
+            userIndex.put(key, user);
+            usersById.put(user.getId(), user);
+            for (Role role: user.roles.values()) {
+                roleAssigned(user, role);
+            }
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    
+    /**
+     * Adds users to the service, skipping any whose userName is taken, and 
+     * publishes their permissions in a single new PolicySnapshot, instead of one 
+     * per User. Into an empty service the user maps are sized for loaded up front,
+     * rather than grown and rehashed step by step
+     * @param loaded the Users to add, bound to the service
+     */
+    void addUsers(Collection<User> loaded) {
+        writeLock.lock();
+        try {
+            if (users.isEmpty()) {
+                int capacity = Math.max(16, loaded.size() + loaded.size() / 3);
+                users = new ConcurrentHashMap<>(capacity);
+                usersById = new ConcurrentHashMap<>(capacity);
+            }
+            PolicySnapshot.Builder next = policy.edit();
+            if (permissionIdsChanged) {
+                next.setPermissionIds(permissionIds);
+                permissionIdsChanged = false;
+            }
+            for (User user: loaded) {
+                if (addUser(user)) {
+                    next.setPermissions(user.getPolicyIndex(), computePermissions(user));
+                }
+            }
+            setPolicy(next.build());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    
+    /**
+     * @param id the id of the User
+     * @return the User of the service with the id, id, or null if there is none
+     */
+    public User getUserById(UUID id) {
+        return usersById.get(id);
     }
     
     public void removeUser(String user) {
-        if (users.containsKey(user)){
-            users.remove(user).getUserName();
-        } else {
-            throw new IllegalArgumentException("Service does not contain user with ID: "+user);
+        writeLock.lock();
+        try {
+            User removed = users.remove(user);
+            if (removed != null){
+                userIndex.remove(user, removed);
+                usersById.remove(removed.getId());
+                for (Role role: removed.roles.values()) {
+                    roleUnassigned(removed, role);
+                }
+                int index = removed.getPolicyIndex();
+                if (index >= 0) {
+                    setPolicy(policy.edit().setPermissions(index, null).build());
+                    removed.setPolicyIndex(-1);
+                    freePolicyIndex(index);
+                }
+            } else {
+                throw new IllegalArgumentException("Service does not contain user with ID: "+user);
+            }
+        } finally {
+            writeLock.unlock();
         }
     }
 
@@ -193,12 +592,71 @@ public class Service implements Comparable, Visitable {
      * @param users the users to set
      */
     public void setUsers(HashMap<String,User> users) {
-        this.users = users;
+        writeLock.lock();
+        try {
+            for (User user: this.users.values()) {
+                user.setPolicyIndex(-1);
+            }
+            nextPolicyIndex = 0;
+            freePolicyIndexCount = 0;
+            this.users = new ConcurrentHashMap<>(users);
+            userIndex.clear();
+            userIndex.putAll(users);
+            usersById.clear();
+            holders.clear();
+            PolicySnapshot.Builder next = policy.edit().clearPermissions().setPermissionIds(permissionIds);
+            for (User user: users.values()) {
+                usersById.put(user.getId(), user);
+                for (Role role: user.roles.values()) {
+                    roleAssigned(user, role);
+                }
+                user.setPolicyIndex(allocatePolicyIndex());
+                next.setPermissions(user.getPolicyIndex(), computePermissions(user));
+            }
+            setPolicy(next.build());
+            permissionIdsChanged = false;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    
+    /**
+     * @return an index to number a User by in the PolicySnapshots, the most 
+     * recently freed one if there is one, so the pages of the snapshots stay as 
+     * small as the number of Users. Called holding the write lock
+     */
+    private int allocatePolicyIndex() {
+        return freePolicyIndexCount > 0 ? freePolicyIndices[--freePolicyIndexCount] : nextPolicyIndex++;
+    }
+    
+    /**
+     * frees the index of a removed User, whose bitset has been cleared and whose 
+     * own index has been set to -1 before the index can be handed out again, so a
+     * token of the removed User never reads the bitset of the next User given the
+     * index. Called holding the write lock
+     */
+    private void freePolicyIndex(int index) {
+        if (freePolicyIndexCount == freePolicyIndices.length) {
+            freePolicyIndices = Arrays.copyOf(freePolicyIndices, freePolicyIndexCount * 2);
+        }
+        freePolicyIndices[freePolicyIndexCount++] = index;
     }
     
     public AuthTokenGenerator getAuthTokenGenerator() {
         return this.tokenGen;
     }
+    
+    /**
+     * Switches the service's AuthTokenGenerator to minting tokens signed with key,
+     * which any process holding the same key and Users can verify without a token
+     * table, as can this process after a restart. Tokens name the service and User
+     * rather than carrying their ids, which differ from process to process
+     * @param key the HMAC-SHA256 key, at least 32 bytes
+     */
+    public void enableSignedTokens(byte[] key) {
+        tokenGen.setSigner(new TokenSigner(normalizeName(name), key), this::getUser);
+        generation.incrementAndGet();
+    }
 
     @Override
     public void acceptVisitor(Visitor visitor) {
@@ -0,0 +1,181 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Snapshot is the compacted, versioned binary image of the whole model, written
+ * at a checkpoint so startup loads it instead of replaying every mutation since 
+ * the beginning. After a header holding the epoch of the journal which continues
+ * it, entries are packed into blocks of about BLOCK_SIZE bytes, each framed by its
+ * length and a CRC32. An entry is a JournalRecord with one of the entry op codes
+ * below and never spans two blocks, so each block is mapped on its own and its
+ * entries decoded straight out of the page cache: loading makes no read calls
+ * and copies nothing but the strings it keeps.
+ * A snapshot is written to a temporary file, forced to disk and then moved over
+ * the previous one, so a crash leaves either the old or the new snapshot.
+ * @author willpassidomo
+ */
+class Snapshot {
+    static final byte ROOT_USER = 1;
+    static final byte SERVICE = 2;
+    static final byte INSTANCE = 3;
+    static final byte PERMISSION = 4;
+    static final byte ROLE = 5;
+    static final byte ROLE_ENTITLEMENTS = 6;
+    static final byte USER = 7;
+
+    static final int BLOCK_SIZE = 16 << 20;
+
+    private static final long MAGIC = 0x4155544853534E50L;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 20;
+    private static final int FRAME_SIZE = 8;
+
+    private Snapshot() {
+    }
+
+    /**
+     * Maps the snapshot at path block by block and hands each entry to load, in
+     * the order it was written
+     * @param path the snapshot file
+     * @param load applies an entry
+     * @return the epoch of the journal continuing the snapshot
+     * @throws IOException if the file can not be read, is not a snapshot or is corrupt
+     */
+    static long read(Path path, Consumer<JournalRecord> load) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException("Not a snapshot: "+path);
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getLong(0) != MAGIC || header.getInt(8) != VERSION) {
+                throw new IOException("Not a snapshot, or a snapshot of another version: "+path);
+            }
+            long epoch = header.getLong(12);
+            long position = HEADER_SIZE;
+            CRC32 crc = new CRC32();
+            while (position < size) {
+                if (size - position < FRAME_SIZE) {
+                    throw new IOException("Truncated snapshot: "+path);
+                }
+                MappedByteBuffer frame = channel.map(FileChannel.MapMode.READ_ONLY, position, FRAME_SIZE);
+                int length = frame.getInt(0);
+                if (length < 0 || size - position - FRAME_SIZE < length) {
+                    throw new IOException("Truncated snapshot: "+path);
+                }
+                MappedByteBuffer block = channel.map(FileChannel.MapMode.READ_ONLY, position + FRAME_SIZE, length);
+                crc.reset();
+                crc.update(block);
+                if ((int) crc.getValue() != frame.getInt(4)) {
+                    throw new IOException("Corrupt snapshot block at "+position+": "+path);
+                }
+                block.rewind();
+                while (block.hasRemaining()) {
+                    load.accept(JournalRecord.read(block));
+                }
+                position += FRAME_SIZE + length;
+            }
+            return epoch;
+        }
+    }
+
+    /**
+     * Writes a snapshot to a temporary file beside its path, which commit() moves 
+     * into place
+     */
+    static class Writer implements Closeable {
+        private final Path path;
+        private final Path temporary;
+        private final FileChannel channel;
+        private final ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE + (BLOCK_SIZE >> 4));
+        private final CRC32 crc = new CRC32();
+        private boolean committed;
+
+        /**
+         * @param path the snapshot file to replace on commit()
+         * @param epoch the epoch of the journal which continues the snapshot
+         * @throws IOException if the temporary file can not be created
+         */
+        Writer(Path path, long epoch) throws IOException {
+            this.path = path;
+            this.temporary = path.resolveSibling(path.getFileName()+".tmp");
+            this.channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putLong(MAGIC).putInt(VERSION).putLong(epoch);
+            header.flip();
+            writeFully(header);
+        }
+
+        /**
+         * @param op the entry op code
+         * @param fields the fields of the entry
+         * @throws IOException if a full block could not be written
+         */
+        void add(byte op, String... fields) throws IOException {
+            byte[] entry = new JournalRecord(op, fields).encode();
+            if (block.size() > 0 && block.size() + entry.length > BLOCK_SIZE) {
+                flushBlock();
+            }
+            block.write(entry, 0, entry.length);
+        }
+
+        /**
+         * writes the last block, forces the file to disk and moves it over the 
+         * previous snapshot
+         * @throws IOException if the snapshot could not be written or moved
+         */
+        void commit() throws IOException {
+            flushBlock();
+            channel.force(true);
+            channel.close();
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                channel.close();
+                Files.deleteIfExists(temporary);
+            }
+        }
+
+        private void flushBlock() throws IOException {
+            if (block.size() == 0) {
+                return;
+            }
+            byte[] bytes = block.toByteArray();
+            crc.reset();
+            crc.update(bytes);
+            ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE).putInt(bytes.length).putInt((int) crc.getValue());
+            frame.flip();
+            writeFully(frame);
+            writeFully(ByteBuffer.wrap(bytes));
+            block.reset();
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+}
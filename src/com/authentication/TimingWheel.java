@@ -0,0 +1,210 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+import java.util.Arrays;
+
+/**
+ * TimingWheel is a hierarchical timing wheel used to expire entries, such as
+ * authTokens, without scanning every entry. Time is cut into ticks of tickMillis.
+ * The wheel has LEVELS levels of SLOTS slots each; a slot on level k covers
+ * SLOTS^k ticks. An entry is put in the coarsest level its deadline fits in and is
+ * moved down a level each time the wheel reaches its slot, so every entry is touched
+ * at most LEVELS times before it expires: amortized O(1) per entry. Entries are
+ * dense int ids owned by the subclass, linked into slot lists through parallel int
+ * arrays, so scheduling and cancelling never allocate.
+ * @author willpassidomo
+ */
+abstract class TimingWheel {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+    private static final int NONE = -1;
+
+    private final long tickMillis;
+    private final int[] heads = new int[LEVELS * SLOTS];
+    private int[] next = new int[0];
+    private int[] prev = new int[0];
+    private int[] slotOf = new int[0];
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param tickMillis the length of one tick, the precision expiry is done at
+     * @param now the current time in milliseconds
+     */
+    TimingWheel(long tickMillis, long now) {
+        this.tickMillis = tickMillis;
+        this.currentTick = now / tickMillis;
+        Arrays.fill(heads, NONE);
+    }
+
+    /**
+     * @param id an entry id
+     * @return the time in milliseconds the entry expires at
+     */
+    protected abstract long deadline(int id);
+
+    /**
+     * Called with each entry once its deadline has passed. The entry has already
+     * been removed from the wheel
+     * @param id the expired entry id
+     */
+    protected abstract void expire(int id);
+
+    /**
+     * Makes room for entry ids up to capacity - 1
+     * @param capacity the number of entry ids
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity > slotOf.length) {
+            int old = slotOf.length;
+            next = Arrays.copyOf(next, capacity);
+            prev = Arrays.copyOf(prev, capacity);
+            slotOf = Arrays.copyOf(slotOf, capacity);
+            Arrays.fill(slotOf, old, capacity, NONE);
+        }
+    }
+
+    /**
+     * Schedules entry id to expire once its deadline has passed. Entries are never
+     * expired early, but may be expired up to one tick late
+     * @param id the entry to schedule, which must not already be scheduled
+     */
+    void schedule(int id) {
+        if (tick(id) <= currentTick) {
+            expire(id);
+            return;
+        }
+        size++;
+        insert(id);
+    }
+
+    /**
+     * Removes entry id from the wheel without expiring it. Does nothing if the
+     * entry is not scheduled
+     * @param id the entry to cancel
+     */
+    void cancel(int id) {
+        if (id < slotOf.length && slotOf[id] != NONE) {
+            unlink(id);
+            size--;
+        }
+    }
+
+    /**
+     * Moves the wheel forward to now, expiring every entry whose deadline has passed
+     * @param now the current time in milliseconds
+     */
+    void advance(long now) {
+        long target = now / tickMillis;
+        if (size == 0 && currentTick < target) {
+            currentTick = target;
+            return;
+        }
+        while (currentTick < target) {
+            currentTick++;
+            int level = 1;
+            while (level < LEVELS && (currentTick & mask(level)) == 0) {
+                level++;
+            }
+            for (int k = level - 1; k > 0; k--) {
+                int id = detach(k * SLOTS + slotIndex(currentTick, k));
+                while (id != NONE) {
+                    int following = next[id];
+                    insert(id);
+                    id = following;
+                }
+            }
+            int id = detach(slotIndex(currentTick, 0));
+            while (id != NONE) {
+                int following = next[id];
+                if (tick(id) <= currentTick) {
+                    size--;
+                    expire(id);
+                } else {
+                    insert(id);
+                }
+                id = following;
+            }
+        }
+    }
+
+    /**
+     * @return the number of entries scheduled on the wheel
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * links entry id into the slot matching its deadline. Deadlines beyond the range
+     * of the top level are parked in its furthest slot and re-placed when reached
+     */
+    private void insert(int id) {
+        long expiryTick = tick(id);
+        long delta = expiryTick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        int index;
+        if (delta >= (1L << (SLOT_BITS * LEVELS))) {
+            index = (slotIndex(currentTick, level) + SLOTS - 1) & (SLOTS - 1);
+        } else {
+            index = slotIndex(Math.max(expiryTick, currentTick), level);
+        }
+        int slot = level * SLOTS + index;
+        int head = heads[slot];
+        next[id] = head;
+        prev[id] = NONE;
+        if (head != NONE) {
+            prev[head] = id;
+        }
+        heads[slot] = id;
+        slotOf[id] = slot;
+    }
+
+    private void unlink(int id) {
+        int before = prev[id];
+        int after = next[id];
+        if (before == NONE) {
+            heads[slotOf[id]] = after;
+        } else {
+            next[before] = after;
+        }
+        if (after != NONE) {
+            prev[after] = before;
+        }
+        slotOf[id] = NONE;
+    }
+
+    /**
+     * empties a slot, returning the first entry of its list. The entries keep
+     * their next links so the caller can walk the list
+     */
+    private int detach(int slot) {
+        int head = heads[slot];
+        heads[slot] = NONE;
+        for (int id = head; id != NONE; id = next[id]) {
+            slotOf[id] = NONE;
+        }
+        return head;
+    }
+
+    private long tick(int id) {
+        return (deadline(id) + tickMillis - 1) / tickMillis;
+    }
+
+    private static int slotIndex(long tick, int level) {
+        return (int) (tick >>> (SLOT_BITS * level)) & (SLOTS - 1);
+    }
+
+    private static long mask(int level) {
+        return (1L << (SLOT_BITS * level)) - 1;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * TokenRandom is the source of the random 128 bit values authTokens are made of.
+ * UUID.randomUUID() draws every token from one shared SecureRandom, which
+ * serializes threads minting tokens at the same time. TokenRandom instead keeps a
+ * small array of stripes, each an independently seeded DRBG SecureRandom with a
+ * buffer of pre-generated bytes. A thread starts at the stripe picked by its id
+ * and moves on to the next stripe if that one is busy, so threads rarely wait on
+ * each other and the cost of the DRBG is paid once per buffer, not once per token.
+ * Striping, rather than one generator per thread, keeps the number of generators
+ * bounded however many threads there are.
+ * @author willpassidomo
+ */
+final class TokenRandom {
+    private static final int TOKENS_PER_BUFFER = 64;
+    private static final Stripe[] STRIPES = newStripes();
+
+    private TokenRandom() {
+    }
+
+    /**
+     * Returns a new unpredictable 128 bit value, all of whose bits are random
+     * @return the random value as a UUID
+     */
+    static UUID nextUUID() {
+        int start = (int) Thread.currentThread().getId();
+        int mask = STRIPES.length - 1;
+        for (int i = 0; i < STRIPES.length; i++) {
+            Stripe stripe = STRIPES[(start + i) & mask];
+            if (stripe.lock.tryLock()) {
+                try {
+                    return stripe.next();
+                } finally {
+                    stripe.lock.unlock();
+                }
+            }
+        }
+        Stripe stripe = STRIPES[start & mask];
+        stripe.lock.lock();
+        try {
+            return stripe.next();
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    private static Stripe[] newStripes() {
+        int count = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 4 - 1);
+        Stripe[] stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe();
+        }
+        return stripes;
+    }
+
+    private static final class Stripe {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final SecureRandom random = newSecureRandom();
+        private final ByteBuffer buffer = ByteBuffer.allocate(16 * TOKENS_PER_BUFFER);
+
+        private Stripe() {
+            buffer.position(buffer.limit());
+        }
+
+        private UUID next() {
+            if (!buffer.hasRemaining()) {
+                random.nextBytes(buffer.array());
+                buffer.clear();
+            }
+            return new UUID(buffer.getLong(), buffer.getLong());
+        }
+
+        private static SecureRandom newSecureRandom() {
+            try {
+                return SecureRandom.getInstance("DRBG");
+            } catch (NoSuchAlgorithmException ex) {
+                return new SecureRandom();
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * TokenSigner mints and verifies self-describing authTokens. A signed token carries
+ * its expiry, a random nonce, the credential tag of its User, the normalized name
+ * of the Service it was minted for and the normalized name of the User, followed 
+ * by an HMAC-SHA256 of those fields truncated to 128 bits. Names, unlike the ids 
+ * Services and Users are given in each process, are the same in every process 
+ * and after a restart, so any process holding the key and the same Users can 
+ * verify a token by recomputing the MAC, without a token table. The credential 
+ * tag, derived from the User's stored password hash, keeps a token from passing 
+ * for a User removed and added again under the same name. Both halves are 
+ * base64url encoded and joined by a '.', so a signed token can never be mistaken
+ * for a UUID token.
+ * @author willpassidomo
+ */
+class TokenSigner {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int HEADER_LENGTH = 26;
+    private static final int MAC_LENGTH = 16;
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final byte[] serviceName;
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs;
+
+    /**
+     * @param serviceName the normalized name of the Service tokens are minted for
+     * @param key the HMAC key, at least 32 bytes
+     */
+    TokenSigner(String serviceName, byte[] key) {
+        if (key == null || key.length < 32) {
+            throw new IllegalArgumentException("Token signing key must be at least 32 bytes");
+        }
+        this.serviceName = serviceName.getBytes(StandardCharsets.UTF_8);
+        if (this.serviceName.length > 0xFFFF) {
+            throw new IllegalArgumentException("Service name is too long to sign tokens for");
+        }
+        this.key = new SecretKeySpec(key.clone(), ALGORITHM);
+        this.macs = ThreadLocal.withInitial(this::newMac);
+    }
+
+    /**
+     * Returns a new signed token for the User named userName
+     * @param userName the normalized name of the User
+     * @param credential the credential tag of the User
+     * @param expiresAt the time the token expires at, in epoch milliseconds
+     * @return the signed token
+     */
+    String sign(String userName, long credential, long expiresAt) {
+        byte[] user = userName.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(HEADER_LENGTH + serviceName.length + user.length);
+        payload.putLong(expiresAt);
+        payload.putLong(ThreadLocalRandom.current().nextLong());
+        payload.putLong(credential);
+        payload.putShort((short) serviceName.length);
+        payload.put(serviceName);
+        payload.put(user);
+        byte[] bytes = payload.array();
+        return ENCODER.encodeToString(bytes) + "." + ENCODER.encodeToString(mac(bytes));
+    }
+
+    /**
+     * tests whether authToken has the shape of a signed token
+     * @param authToken the token to test
+     * @return true if authToken could be a signed token
+     */
+    static boolean isSigned(String authToken) {
+        return authToken != null && authToken.indexOf('.') > 0;
+    }
+
+    /**
+     * Verifies the MAC of authToken and that it was minted for this signer's Service
+     * @param authToken the token to verify
+     * @return the decoded fields of the token, or null if the token is malformed,
+     * was minted for another Service or its MAC does not match
+     */
+    Claims verify(String authToken) {
+        if (!isSigned(authToken)) {
+            return null;
+        }
+        int dot = authToken.indexOf('.');
+        byte[] payload;
+        byte[] mac;
+        try {
+            payload = DECODER.decode(authToken.substring(0, dot));
+            mac = DECODER.decode(authToken.substring(dot + 1));
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+        if (payload.length < HEADER_LENGTH + serviceName.length || mac.length != MAC_LENGTH
+                || !MessageDigest.isEqual(mac, mac(payload))) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        long expiresAt = buffer.getLong();
+        buffer.getLong();
+        long credential = buffer.getLong();
+        int serviceLength = buffer.getShort() & 0xFFFF;
+        if (serviceLength != serviceName.length || !Arrays.equals(payload, HEADER_LENGTH, 
+                HEADER_LENGTH + serviceLength, serviceName, 0, serviceLength)) {
+            return null;
+        }
+        int userStart = HEADER_LENGTH + serviceLength;
+        String userName = new String(payload, userStart, payload.length - userStart, StandardCharsets.UTF_8);
+        return new Claims(userName, credential, expiresAt, ByteBuffer.wrap(mac).getLong());
+    }
+
+    private byte[] mac(byte[] payload) {
+        byte[] full = macs.get().doFinal(payload);
+        byte[] truncated = new byte[MAC_LENGTH];
+        System.arraycopy(full, 0, truncated, 0, MAC_LENGTH);
+        return truncated;
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ALGORITHM+" is not available", ex);
+        }
+    }
+
+    /**
+     * Claims holds the fields decoded from a verified signed token. tokenId is the
+     * first 64 bits of the token's MAC, which identify the token for revocation
+     */
+    static final class Claims {
+        final String userName;
+        final long credential;
+        final long expiresAt;
+        final long tokenId;
+
+        Claims(String userName, long credential, long expiresAt, long tokenId) {
+            this.userName = userName;
+            this.credential = credential;
+            this.expiresAt = expiresAt;
+            this.tokenId = tokenId;
+        }
+    }
+}
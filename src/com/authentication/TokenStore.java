@@ -0,0 +1,403 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * TokenStore keeps the live UUID tokens of an AuthTokenGenerator in a memory-mapped
+ * file, so they survive a restart of the process. It is an open-addressing hash
+ * table of fixed size slots, probed linearly, laid out directly in the mapping:
+ * each slot holds the token's two halves, its expiry, the name of its User and a
+ * check word over all of them, so a slot torn by a crash is recognised and dropped.
+ * Nothing is loaded at startup; a token is looked up in the file the first time it
+ * is presented and then moved into the generator's TokenTable.
+ * Removed and expired slots are reclaimed in place by backward-shift deletion, so
+ * the table never fills with tombstones; when live tokens still take more than
+ * three quarters of the slots, the table is rebuilt at twice the size beside the
+ * file and moved over it. Changes take the store's StampedLock; lookups, which
+ * every unknown token presented to the generator makes, are optimistic reads, as
+ * in TokenTable, and only lock if a change got in their way.
+ * Writes reach the file through the page cache, which outlives the process, and
+ * are forced to disk by sweep(long) and close().
+ * @author willpassidomo
+ */
+class TokenStore implements Closeable {
+    static final int SLOT_SIZE = 128;
+    static final int MAX_NAME_BYTES = SLOT_SIZE - 30;
+    static final int MIN_CAPACITY = 1 << 10;
+
+    private static final long MAGIC = 0x415554485453544FL;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int MAX_CAPACITY = 1 << 23;
+
+    private static final int HIGH = 0;
+    private static final int LOW = 8;
+    private static final int EXPIRES = 16;
+    private static final int CHECK = 24;
+    private static final int NAME_LENGTH = 28;
+    private static final int NAME = 30;
+
+    private final Path path;
+    private final StampedLock lock = new StampedLock();
+    private FileChannel channel;
+    private MappedByteBuffer slots;
+    private int capacity;
+    private int size;
+
+    /**
+     * an entry found in the store
+     */
+    static final class Entry {
+        final String userName;
+        final long expiresAt;
+
+        Entry(String userName, long expiresAt) {
+            this.userName = userName;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private TokenStore(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Opens the store at path, creating it with capacity slots if it does not exist
+     * @param path the store file
+     * @param capacity the number of slots of a new store, rounded up to a power of two
+     * @return the store
+     * @throws IOException if the file can not be opened, mapped or is not a store
+     */
+    static TokenStore open(Path path, int capacity) throws IOException {
+        TokenStore store = new TokenStore(path);
+        store.map(path, Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.min(MAX_CAPACITY, Math.max(1, capacity)) * 2 - 1)));
+        return store;
+    }
+
+    private void map(Path file, int newCapacity) throws IOException {
+        FileChannel opened = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (opened.size() >= HEADER_SIZE) {
+                MappedByteBuffer header = opened.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                if (header.getLong(0) != MAGIC || header.getInt(8) != VERSION || header.getInt(12) != SLOT_SIZE
+                        || Integer.bitCount(header.getInt(16)) != 1
+                        || opened.size() != HEADER_SIZE + (long) header.getInt(16) * SLOT_SIZE) {
+                    throw new IOException("Not a token store, or a token store of another version: "+file);
+                }
+                newCapacity = header.getInt(16);
+            }
+            MappedByteBuffer mapped = opened.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) newCapacity * SLOT_SIZE);
+            mapped.putLong(0, MAGIC).putInt(8, VERSION).putInt(12, SLOT_SIZE).putInt(16, newCapacity);
+            channel = opened;
+            slots = mapped;
+            capacity = newCapacity;
+            size = 0;
+            for (int i = 0; i < capacity; i++) {
+                if (isOccupied(i)) {
+                    size++;
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            opened.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Stores the token high:low, minted for the User named userName, first 
+     * reclaiming expired slots, or growing the store, if it is three quarters full.
+     * Tokens of Users whose name takes more than MAX_NAME_BYTES are not stored
+     * @param high the most significant 64 bits of the token
+     * @param low the least significant 64 bits of the token
+     * @param userName the name of the User the token was minted for
+     * @param expiresAt the time the token expires at, in epoch milliseconds
+     * @param now the current time in epoch milliseconds
+     * @return true if the token was stored
+     * @throws IOException if the store had to grow and could not
+     */
+    boolean put(long high, long low, String userName, long expiresAt, long now) throws IOException {
+        byte[] name = userName.getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_NAME_BYTES || expiresAt <= now) {
+            return false;
+        }
+        long stamp = lock.writeLock();
+        try {
+            if ((size + 1) * 4L > capacity * 3L) {
+                sweepLocked(now);
+                if ((size + 1) * 4L > capacity * 3L) {
+                    grow(now);
+                }
+            }
+            int slot = indexOf(high, low);
+            if (slot < 0) {
+                slot = ~slot;
+                size++;
+            }
+            write(slot, high, low, expiresAt, name);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @param high the most significant 64 bits of the token
+     * @param low the least significant 64 bits of the token
+     * @param now the current time in epoch milliseconds
+     * @return the entry of the token, or null if it is not stored or has expired
+     */
+    Entry find(long high, long low, long now) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                Entry entry = findEntry(high, low, now);
+                if (lock.validate(stamp)) {
+                    return entry;
+                }
+            } catch (RuntimeException ex) {
+                // a slot changed under the optimistic read; read it again locked
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return findEntry(high, low, now);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private Entry findEntry(long high, long low, long now) {
+        int slot = indexOf(high, low);
+        if (slot < 0) {
+            return null;
+        }
+        long expiresAt = slots.getLong(offset(slot) + EXPIRES);
+        return expiresAt > now ? new Entry(readName(slot), expiresAt) : null;
+    }
+
+    /**
+     * Removes the token high:low, if it is stored
+     * @param high the most significant 64 bits of the token
+     * @param low the least significant 64 bits of the token
+     * @param now the current time in epoch milliseconds
+     * @return true if the token was stored and had not expired
+     */
+    boolean remove(long high, long low, long now) {
+        long stamp = lock.writeLock();
+        try {
+            int slot = indexOf(high, low);
+            if (slot < 0) {
+                return false;
+            }
+            boolean live = slots.getLong(offset(slot) + EXPIRES) > now;
+            delete(slot);
+            return live;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Reclaims the slots of expired tokens, and of any slot torn by a crash, then
+     * forces the store to disk
+     * @param now the current time in epoch milliseconds
+     * @return the number of slots reclaimed
+     */
+    int sweep(long now) {
+        long stamp = lock.writeLock();
+        try {
+            int reclaimed = sweepLocked(now);
+            slots.force();
+            return reclaimed;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return the number of tokens in the store, including expired tokens which 
+     * have not been reclaimed yet
+     */
+    int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        long stamp = lock.writeLock();
+        try {
+            slots.force();
+            channel.close();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * closes the store and deletes its file
+     */
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    private int sweepLocked(long now) {
+        int reclaimed = 0;
+        for (int i = 0; i < capacity; i++) {
+            while (isOccupied(i) && (slots.getLong(offset(i) + EXPIRES) <= now || !isIntact(i))) {
+                delete(i);
+                reclaimed++;
+            }
+        }
+        return reclaimed;
+    }
+
+    /**
+     * rebuilds the live tokens into a store twice the size beside the file, then
+     * moves it over the file and maps it in place of the old one
+     */
+    private void grow(long now) throws IOException {
+        if (capacity >= MAX_CAPACITY) {
+            throw new IOException("Token store is full: "+path);
+        }
+        Path grown = path.resolveSibling(path.getFileName()+".grow");
+        Files.deleteIfExists(grown);
+        TokenStore next = new TokenStore(grown);
+        next.map(grown, capacity * 2);
+        for (int i = 0; i < capacity; i++) {
+            int base = offset(i);
+            if (isOccupied(i) && slots.getLong(base + EXPIRES) > now && isIntact(i)) {
+                int slot = ~next.indexOf(slots.getLong(base + HIGH), slots.getLong(base + LOW));
+                next.copyFrom(slots, base, slot);
+                next.size++;
+            }
+        }
+        next.slots.force();
+        channel.close();
+        Files.move(grown, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = next.channel;
+        slots = next.slots;
+        capacity = next.capacity;
+        size = next.size;
+    }
+
+    /**
+     * @return the slot of high:low, or the complement of the empty slot it would go in
+     */
+    private int indexOf(long high, long low) {
+        int mask = capacity - 1;
+        for (int i = home(high, low) & mask; ; i = (i + 1) & mask) {
+            if (!isOccupied(i)) {
+                return ~i;
+            }
+            int base = offset(i);
+            if (slots.getLong(base + HIGH) == high && slots.getLong(base + LOW) == low && isIntact(i)) {
+                return i;
+            }
+        }
+    }
+
+    /**
+     * empties slot, shifting back the later slots of its probe run which would no 
+     * longer be found past the gap
+     */
+    private void delete(int slot) {
+        int mask = capacity - 1;
+        int gap = slot;
+        for (int i = (gap + 1) & mask; isOccupied(i); i = (i + 1) & mask) {
+            int base = offset(i);
+            int home = home(slots.getLong(base + HIGH), slots.getLong(base + LOW)) & mask;
+            boolean stays = gap <= i ? gap < home && home <= i : gap < home || home <= i;
+            if (!stays) {
+                copyFrom(slots, base, gap);
+                gap = i;
+            }
+        }
+        slots.putLong(offset(gap) + EXPIRES, 0);
+        size--;
+    }
+
+    private void write(int slot, long high, long low, long expiresAt, byte[] name) {
+        int base = offset(slot);
+        slots.putLong(base + EXPIRES, 0);
+        slots.put(base + NAME, name, 0, name.length);
+        slots.putShort(base + NAME_LENGTH, (short) name.length);
+        slots.putLong(base + HIGH, high);
+        slots.putLong(base + LOW, low);
+        slots.putInt(base + CHECK, check(high, low, expiresAt, name, 0, name.length));
+        slots.putLong(base + EXPIRES, expiresAt);
+    }
+
+    private void copyFrom(MappedByteBuffer source, int base, int slot) {
+        byte[] bytes = new byte[SLOT_SIZE];
+        source.get(base, bytes);
+        int target = offset(slot);
+        slots.putLong(target + EXPIRES, 0);
+        slots.put(target, bytes);
+    }
+
+    private String readName(int slot) {
+        int base = offset(slot);
+        byte[] name = new byte[slots.getShort(base + NAME_LENGTH)];
+        slots.get(base + NAME, name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    private boolean isOccupied(int slot) {
+        return slots.getLong(offset(slot) + EXPIRES) != 0;
+    }
+
+    /**
+     * tests the slot's check word, which a crash in the middle of writing it breaks
+     */
+    private boolean isIntact(int slot) {
+        int base = offset(slot);
+        int length = slots.getShort(base + NAME_LENGTH);
+        if (length < 0 || length > MAX_NAME_BYTES) {
+            return false;
+        }
+        byte[] name = new byte[length];
+        slots.get(base + NAME, name);
+        return slots.getInt(base + CHECK) == check(slots.getLong(base + HIGH), 
+                slots.getLong(base + LOW), slots.getLong(base + EXPIRES), name, 0, length);
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static int home(long high, long low) {
+        long h = (high ^ (low * 0x9E3779B97F4A7C15L)) * 0xC2B2AE3D27D4EB4FL;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int check(long high, long low, long expiresAt, byte[] name, int from, int to) {
+        long h = high * 0x9E3779B97F4A7C15L ^ low;
+        h = (h ^ expiresAt) * 0xC2B2AE3D27D4EB4FL;
+        for (int i = from; i < to; i++) {
+            h = (h ^ name[i]) * 0x100000001B3L;
+        }
+        return (int) (h ^ (h >>> 29));
+    }
+}
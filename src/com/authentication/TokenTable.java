@@ -0,0 +1,471 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.authentication;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * TokenTable maps UUID authTokens to the User they were minted for and the time
+ * they expire at. Instead of String keys in a HashMap, each token is kept as its
+ * two 64 bit long halves in parallel primitive arrays, with the expiry and User in
+ * parallel arrays beside them, about 50 bytes per live token. Entries live at
+ * stable int ids; a separate open-addressing int index, probed linearly and kept at
+ * most half full, maps a token's hash to its id. Token strings are decoded straight
+ * from their characters, so a lookup never allocates. Expired entries are evicted
+ * by a TimingWheel over the entry ids.
+ * The table is split into segments by token hash, each guarded by its own
+ * StampedLock. Lookups are optimistic reads which take no lock unless a writer
+ * changed the segment meanwhile, so they scale with the number of readers; puts and
+ * removes only lock the one segment they touch. A segment is only allocated when
+ * the first token hashing to it is put, so an idle table costs a few bytes.
+ * @author willpassidomo
+ */
+class TokenTable {
+    private static final int EMPTY = 0;
+
+    private final AtomicReferenceArray<Segment> segments;
+    private final int segmentShift;
+
+    TokenTable() {
+        int count = Math.max(16, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1));
+        segments = new AtomicReferenceArray<>(count);
+        segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+    }
+
+    /**
+     * Adds the token high:low, minted for user and expiring at expires, first
+     * evicting the expired tokens of the segment it goes in
+     * @param high the most significant 64 bits of the token
+     * @param low the least significant 64 bits of the token
+     * @param user the User the token was minted for
+     * @param expires the time the token expires at, in epoch milliseconds
+     * @param now the current time in epoch milliseconds
+     */
+    void put(long high, long low, User user, long expires, long now) {
+        put(high, low, user, expires, now, false);
+    }
+
+    /**
+     * Like put(long, long, User, long, long), unless the table has the token 
+     * high:low already, checked under the same lock as the insert
+     * @return true if the token was added, false if the table had it already
+     */
+    boolean putIfAbsent(long high, long low, User user, long expires, long now) {
+        return put(high, low, user, expires, now, true);
+    }
+
+    private boolean put(long high, long low, User user, long expires, long now, boolean onlyIfAbsent) {
+        int hash = hash(high, low);
+        Segment segment = segmentFor(hash);
+        if (segment == null) {
+            segments.compareAndSet(hash >>> segmentShift, null, new Segment(now));
+            segment = segmentFor(hash);
+        }
+        long stamp = segment.lock.writeLock();
+        try {
+            segment.wheel.advance(now);
+            if (onlyIfAbsent && segment.find(hash, high, low) >= 0) {
+                return false;
+            }
+            segment.put(hash, high, low, user, expires);
+            return true;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Validates authToken and tests whether its User has the Permission with id
+     * permissionId in policy. Never allocates and, unless a writer is changing the
+     * same segment, never locks
+     * @param authToken the token to check
+     * @param now the current time in epoch milliseconds
+     * @param policy the PolicySnapshot to decide against, or null to only check the token
+     * @param permissionId the id of the Permission, or -1 to only check the token
+     * @return ALLOW or DENY if the token is live, otherwise TOKEN_EXPIRED or TOKEN_UNKNOWN
+     */
+    AccessDecision decide(String authToken, long now, PolicySnapshot policy, int permissionId) {
+        if (!isWellFormed(authToken)) {
+            return AccessDecision.TOKEN_UNKNOWN;
+        }
+        long high = parseHigh(authToken);
+        long low = parseLow(authToken);
+        int hash = hash(high, low);
+        Segment segment = segmentFor(hash);
+        if (segment == null) {
+            return AccessDecision.TOKEN_UNKNOWN;
+        }
+        User user = null;
+        long expires = 0;
+        long stamp = segment.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            int id = segment.find(hash, high, low);
+            if (id >= 0) {
+                user = segment.users[id];
+                expires = segment.expiresAt[id];
+            }
+        }
+        if (stamp == 0 || !segment.lock.validate(stamp)) {
+            stamp = segment.lock.readLock();
+            try {
+                int id = segment.find(hash, high, low);
+                user = id >= 0 ? segment.users[id] : null;
+                expires = id >= 0 ? segment.expiresAt[id] : 0;
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        if (user == null) {
+            return AccessDecision.TOKEN_UNKNOWN;
+        } else if (expires <= now) {
+            return AccessDecision.TOKEN_EXPIRED;
+        }
+        return policy != null && policy.hasPermission(user, permissionId) ? AccessDecision.ALLOW : AccessDecision.DENY;
+    }
+
+    /**
+     * Returns the User authToken was minted for, if the token has not expired by
+     * now. Like decide, never allocates and, unless a writer is changing the same
+     * segment, never locks
+     * @param authToken the token to look up
+     * @param now the current time in epoch milliseconds, or Long.MIN_VALUE to find
+     * the User whether or not the token has expired
+     * @return the User, or null if authToken is not in the table or has expired
+     */
+    User find(String authToken, long now) {
+        if (!isWellFormed(authToken)) {
+            return null;
+        }
+        long high = parseHigh(authToken);
+        long low = parseLow(authToken);
+        int hash = hash(high, low);
+        Segment segment = segmentFor(hash);
+        if (segment == null) {
+            return null;
+        }
+        User user = null;
+        long stamp = segment.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            int id = segment.find(hash, high, low);
+            user = id >= 0 && segment.expiresAt[id] > now ? segment.users[id] : null;
+        }
+        if (stamp == 0 || !segment.lock.validate(stamp)) {
+            stamp = segment.lock.readLock();
+            try {
+                int id = segment.find(hash, high, low);
+                user = id >= 0 && segment.expiresAt[id] > now ? segment.users[id] : null;
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return user;
+    }
+
+    /**
+     * Returns the time authToken expires at. Like decide, never allocates and, 
+     * unless a writer is changing the same segment, never locks
+     * @param authToken the token to look up
+     * @return the time the token expires at in epoch milliseconds, or 
+     * Long.MIN_VALUE if authToken is not in the table
+     */
+    long getExpiry(String authToken) {
+        if (!isWellFormed(authToken)) {
+            return Long.MIN_VALUE;
+        }
+        long high = parseHigh(authToken);
+        long low = parseLow(authToken);
+        int hash = hash(high, low);
+        Segment segment = segmentFor(hash);
+        if (segment == null) {
+            return Long.MIN_VALUE;
+        }
+        long expires = Long.MIN_VALUE;
+        long stamp = segment.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            int id = segment.find(hash, high, low);
+            expires = id >= 0 ? segment.expiresAt[id] : Long.MIN_VALUE;
+        }
+        if (stamp == 0 || !segment.lock.validate(stamp)) {
+            stamp = segment.lock.readLock();
+            try {
+                int id = segment.find(hash, high, low);
+                expires = id >= 0 ? segment.expiresAt[id] : Long.MIN_VALUE;
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return expires;
+    }
+
+    /**
+     * Removes the entry for authToken
+     * @param authToken the token to remove
+     * @return true if the token was in the table
+     */
+    boolean remove(String authToken) {
+        if (!isWellFormed(authToken)) {
+            return false;
+        }
+        long high = parseHigh(authToken);
+        long low = parseLow(authToken);
+        int hash = hash(high, low);
+        Segment segment = segmentFor(hash);
+        if (segment == null) {
+            return false;
+        }
+        long stamp = segment.lock.writeLock();
+        try {
+            int id = segment.find(hash, high, low);
+            if (id < 0) {
+                return false;
+            }
+            segment.wheel.cancel(id);
+            segment.removeEntry(id);
+            return true;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Evicts every entry whose expiry has passed by now
+     * @param now the current time in epoch milliseconds
+     */
+    void expire(long now) {
+        for (int i = 0; i < segments.length(); i++) {
+            Segment segment = segments.get(i);
+            if (segment == null) {
+                continue;
+            }
+            long stamp = segment.lock.writeLock();
+            try {
+                segment.wheel.advance(now);
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * @return the number of tokens in the table
+     */
+    int size() {
+        int size = 0;
+        for (int i = 0; i < segments.length(); i++) {
+            Segment segment = segments.get(i);
+            size += segment == null ? 0 : segment.size;
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of expired tokens evicted since the table was created
+     */
+    long getEvicted() {
+        long evicted = 0;
+        for (int i = 0; i < segments.length(); i++) {
+            Segment segment = segments.get(i);
+            evicted += segment == null ? 0 : segment.evicted;
+        }
+        return evicted;
+    }
+
+    /**
+     * @return the segment for hash, or null if no token hashing to it has been put
+     */
+    private Segment segmentFor(int hash) {
+        return segments.get(hash >>> segmentShift);
+    }
+
+    private static int hash(long high, long low) {
+        long h = (high ^ (low * 0x9E3779B97F4A7C15L)) * 0xC2B2AE3D27D4EB4FL;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * tests whether authToken is a 36 character UUID string, 8-4-4-4-12 hex digits
+     */
+    static boolean isWellFormed(String authToken) {
+        if (authToken == null || authToken.length() != 36) {
+            return false;
+        }
+        for (int i = 0; i < 36; i++) {
+            char c = authToken.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if (hexValue(c) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static long parseHigh(String authToken) {
+        return parseHex(authToken, 0, 8) << 32 | parseHex(authToken, 9, 13) << 16 | parseHex(authToken, 14, 18);
+    }
+
+    static long parseLow(String authToken) {
+        return parseHex(authToken, 19, 23) << 48 | parseHex(authToken, 24, 36);
+    }
+
+    private static long parseHex(String s, int from, int to) {
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            value = value << 4 | hexValue(s.charAt(i));
+        }
+        return value;
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * Segment is one independently locked part of the table. All of its methods
+     * must be called holding its lock, except find, which also tolerates the torn
+     * state an optimistic reader may see: it stays in bounds and always terminates,
+     * and its result is discarded if the read does not validate
+     */
+    private static final class Segment {
+        private final StampedLock lock = new StampedLock();
+        private long[] high = new long[16];
+        private long[] low = new long[16];
+        private long[] expiresAt = new long[16];
+        private User[] users = new User[16];
+        private int[] freeIds = new int[16];
+        private int freeCount;
+        private int nextId;
+        private int[] index = new int[32];
+        private volatile int size;
+        private volatile long evicted;
+        private final Wheel wheel;
+
+        private Segment(long now) {
+            wheel = new Wheel(now);
+            wheel.ensureCapacity(users.length);
+        }
+
+        private void put(int hash, long high, long low, User user, long expires) {
+            if ((size + 1) * 2 > index.length) {
+                resizeIndex(index.length * 2);
+            }
+            int id = allocateId();
+            this.high[id] = high;
+            this.low[id] = low;
+            this.expiresAt[id] = expires;
+            this.users[id] = user;
+            int mask = index.length - 1;
+            int i = hash & mask;
+            while (index[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            index[i] = id + 1;
+            size++;
+            wheel.schedule(id);
+        }
+
+        private int find(int hash, long high, long low) {
+            int[] index = this.index;
+            long[] highs = this.high;
+            long[] lows = this.low;
+            int mask = index.length - 1;
+            int i = hash & mask;
+            for (int probes = 0; probes < index.length && index[i] != EMPTY; probes++) {
+                int id = index[i] - 1;
+                if (id < highs.length && id < lows.length && highs[id] == high && lows[id] == low) {
+                    return id < users.length && id < expiresAt.length ? id : -1;
+                }
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        /**
+         * unlinks entry id from the index, closing the gap by shifting later entries
+         * of its probe run back, so the index never needs tombstones
+         */
+        private void removeEntry(int id) {
+            int mask = index.length - 1;
+            int i = hash(high[id], low[id]) & mask;
+            while (index[i] != id + 1) {
+                i = (i + 1) & mask;
+            }
+            int gap = i;
+            for (int j = (gap + 1) & mask; index[j] != EMPTY; j = (j + 1) & mask) {
+                int other = index[j] - 1;
+                int home = hash(high[other], low[other]) & mask;
+                if (((j - home) & mask) >= ((j - gap) & mask)) {
+                    index[gap] = index[j];
+                    gap = j;
+                }
+            }
+            index[gap] = EMPTY;
+            users[id] = null;
+            freeIds[freeCount++] = id;
+            size--;
+        }
+
+        private int allocateId() {
+            if (freeCount > 0) {
+                return freeIds[--freeCount];
+            }
+            if (nextId == users.length) {
+                int capacity = users.length + (users.length >> 1);
+                high = Arrays.copyOf(high, capacity);
+                low = Arrays.copyOf(low, capacity);
+                expiresAt = Arrays.copyOf(expiresAt, capacity);
+                users = Arrays.copyOf(users, capacity);
+                freeIds = Arrays.copyOf(freeIds, capacity);
+                wheel.ensureCapacity(capacity);
+            }
+            return nextId++;
+        }
+
+        private void resizeIndex(int capacity) {
+            int[] resized = new int[capacity];
+            int mask = capacity - 1;
+            for (int slot: index) {
+                if (slot != EMPTY) {
+                    int i = hash(high[slot - 1], low[slot - 1]) & mask;
+                    while (resized[i] != EMPTY) {
+                        i = (i + 1) & mask;
+                    }
+                    resized[i] = slot;
+                }
+            }
+            index = resized;
+        }
+
+        private final class Wheel extends TimingWheel {
+            private Wheel(long now) {
+                super(1000, now);
+            }
+
+            @Override
+            protected long deadline(int id) {
+                return expiresAt[id];
+            }
+
+            @Override
+            protected void expire(int id) {
+                removeEntry(id);
+                evicted++;
+            }
+        }
+    }
+}
@@ -8,9 +8,10 @@ package com.authentication;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * The user class represents a User in a service. Users are assigned roles 
@@ -20,15 +21,19 @@ import java.util.UUID;
  * which are called internally, checkPassword(String) which return’s true if the 
  * hashed password provided matches the stored hashed password, and 
  * hasPermission(Permission),  which returns true if the user has been assigned 
- * the passed permission.
+ * the passed permission. Role assignments are changed holding the service's write
+ * lock, and each change publishes a new PolicySnapshot of the service, which 
+ * permission checks read without locking.
  * @author willpassidomo
  */
 public class User implements Visitable, Comparable{
     private UUID id;
-    private String userName;
-    private String password;
-    private Service service;
-    HashMap<String, Role> roles = new HashMap<>();
+    private volatile String userName;
+    private volatile String password;
+    private volatile Service service;
+    final ConcurrentSkipListMap<String, Role> roles = new ConcurrentSkipListMap<>(Service.NAME_ORDER);
+    private int policyIndex = -1;
+    private static final ReentrantLock unboundLock = new ReentrantLock();
     
     /**
      * the private constructor for User
@@ -38,7 +43,7 @@ public class User implements Visitable, Comparable{
     private User(String userName, String password) {
         this.userName = userName;
         this.password = password;
-        this.id = UUID.randomUUID();
+        this.id = TokenRandom.nextUUID();
     }
     
     /**
@@ -53,6 +58,25 @@ public class User implements Visitable, Comparable{
         
     }
     
+    /**
+     * creates a User of service holding roles, as loaded from a snapshot, without
+     * adding it to the service or publishing its permissions; Service.addUsers 
+     * does both for all the loaded Users at once
+     * @param service the service the User belongs to
+     * @param userName the User's userName
+     * @param password the User's hashed password
+     * @param roles the User's Roles
+     * @return the new User
+     */
+    static User restore(Service service, String userName, String password, List<Role> roles) {
+        User user = new User(userName, password);
+        user.setService(service);
+        for (Role role: roles) {
+            user.roles.put(role.getName(), role);
+        }
+        return user;
+    }
+    
     /**
      * creates a new User object with the specified name, userName and the password, 
      * password and addes it to the List of Users associated with the specified
@@ -64,14 +88,12 @@ public class User implements Visitable, Comparable{
      */
     
     public static User newUser(Service service, String userName, String password) throws UserNameAlreadyExistsException {
-        if(service.getUsers().containsKey(userName.toLowerCase())) {
+        User user = new User(userName, password);
+        user.setService(service);
+        if (!service.addUser(user)) {
             throw new UserNameAlreadyExistsException("this username already exists in service: "+service.getName());
-        } else {
-            User user = new User(userName, password);
-            service.addUser(user);
-            user.setService(service);
-            return user;
         }
+        return user;
     }
     
     /**
@@ -94,30 +116,110 @@ public class User implements Visitable, Comparable{
      */
     
     public boolean hasPermission(String permission) throws AccessDeniedException {
-        for (Role role: roles.values()) {
-            if (role.hasPermission(permission)) {
+        Service owner = service;
+        if (owner != null) {
+            PolicySnapshot policy = owner.getPolicy();
+            if (policy.hasPermission(this, policy.getPermissionId(permission))) {
                 return true;
             }
         }
         throw new AccessDeniedException(this, permission);
     }
     
+    /**
+     * tests whether the User has the Permission with the service assigned id, 
+     * permissionId, in the current PolicySnapshot of the User's service
+     * @param permissionId the id of the Permission, as assigned by the User's service
+     * @return true if the User has the Permission, false if they do not, or if 
+     * permissionId is negative
+     */
+    boolean hasPermission(int permissionId) {
+        Service owner = service;
+        return owner != null && owner.getPolicy().hasPermission(this, permissionId);
+    }
+    
+    /**
+     * @return the dense index the User's service numbers the User by in its 
+     * PolicySnapshots, or -1 if the User has no service or was removed from it
+     */
+    int getPolicyIndex() {
+        return policyIndex;
+    }
+    
+    /**
+     * @param policyIndex the index the service numbers the User by
+     */
+    void setPolicyIndex(int policyIndex) {
+        this.policyIndex = policyIndex;
+    }
+    
     public String getPassword() {
         return this.password;
     }
     
     public List<Role> getRoles() {
-        List<Role> role = new ArrayList<>(roles.values());
-        Collections.sort(role);
-        return role;
+        return new ArrayList<>(roles.values());
+    }
+    
+    /**
+     * @param cursor the cursor of the previous page, or null for the first page
+     * @param limit the most Roles to return
+     * @return the User's Roles following cursor, in the order of getRoles()
+     */
+    Page<Role> getRoles(String cursor, int limit) {
+        return Page.of(roles, cursor, limit);
     }
     
     public void addRole(Role role) {
-        roles.put(role.getName(), role);
+        ReentrantLock lock = writeLock();
+        lock.lock();
+        try {
+            Role previous = roles.put(role.getName(), role);
+            Service owner = service;
+            if (owner != null) {
+                if (previous != null && previous != role) {
+                    owner.roleUnassigned(this, previous);
+                }
+                owner.roleAssigned(this, role);
+            }
+            rolesChanged();
+        } finally {
+            lock.unlock();
+        }
     }
     
     public void removeRole(String roleID) {
-        roles.remove(roleID);
+        ReentrantLock lock = writeLock();
+        lock.lock();
+        try {
+            Role removed = roles.remove(roleID);
+            Service owner = service;
+            if (owner != null && removed != null) {
+                owner.roleUnassigned(this, removed);
+            }
+            rolesChanged();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * has the User's service publish the User's new permissions
+     */
+    private void rolesChanged() {
+        Service owner = service;
+        if (owner != null) {
+            owner.publishPolicy(Collections.singletonList(this));
+        }
+    }
+    
+    /**
+     * @return the write lock of the User's service, or a shared lock for Users
+     * without a service
+     */
+    private ReentrantLock writeLock() {
+        Service owner = service;
+        return owner != null ? owner.getWriteLock() : unboundLock;
     }
 
     /**
@@ -143,19 +245,52 @@ public class User implements Visitable, Comparable{
      * user in the service
      */
     public void setUserName(String userName) throws UserNameAlreadyExistsException {
-        if(getService().getUsers().containsKey(userName.toLowerCase())) {
+        if(getService().getUserMap().containsKey(userName.toLowerCase())) {
             throw new UserNameAlreadyExistsException(userName, this, service);
         } else {
             this.userName = userName;
         }
     }
 
+    /**
+     * @return a 64 bit FNV-1a hash of the User's stored password hash, which signed
+     * tokens carry so they stop passing for the User once the password changes or 
+     * the User is removed and another added under the same name. Salted hashes 
+     * differ even for the same password
+     */
+    long getCredentialTag() {
+        String stored = password;
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < stored.length(); i++) {
+            hash = (hash ^ stored.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
     /**
      * @param password the password to set
      */
     public void setPassword(String password) {
         this.password = password;
     }
+    
+    /**
+     * Replaces the User's stored password hash with updated, unless it was 
+     * changed since expected was read
+     * @param expected the stored hash updated was made to replace
+     * @param updated the new hash of the same password
+     */
+    void replacePassword(String expected, String updated) {
+        ReentrantLock lock = writeLock();
+        lock.lock();
+        try {
+            if (expected.equals(password)) {
+                password = updated;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
 
     @Override
     public void acceptVisitor(Visitor visitor) {